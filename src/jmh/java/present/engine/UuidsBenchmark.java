@@ -0,0 +1,35 @@
+package present.engine;
+
+import java.util.Base64;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks {@link Uuids}.
+ *
+ * @author Bob Lee (bob@present.co)
+ */
+@State(Scope.Thread)
+public class UuidsBenchmark {
+
+  private final String uuid = "6ba7b810-9dad-11d1-80b4-00c04fd430c8";
+  private final String name = "bob@present.co";
+
+  @Setup public void setUp() {
+    Uuids.setPrivateKey(Base64.getEncoder().encodeToString(new byte[32]));
+  }
+
+  @Benchmark public boolean isValid() {
+    return Uuids.isValid(uuid);
+  }
+
+  @Benchmark public String fromName() {
+    return Uuids.fromName(name);
+  }
+
+  @Benchmark public String newUuid() {
+    return Uuids.newUuid();
+  }
+}
@@ -0,0 +1,58 @@
+package present.engine.log;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import present.engine.CurrentUser;
+import present.engine.Uuids;
+
+/**
+ * Benchmarks {@link LoggingDatastoreService}.
+ *
+ * @author Bob Lee (bob@present.co)
+ */
+@State(Scope.Thread)
+public class LoggingDatastoreServiceBenchmark {
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  private LoggingDatastoreService service;
+  private LoggingDatastoreService filtered;
+  private Entity entity;
+
+  @Setup public void setUp() {
+    helper.setUp();
+    CurrentUser.setIdSupplier(() -> Uuids.NULL);
+    service = new LoggingDatastoreService(DatastoreServiceFactory.getAsyncDatastoreService(),
+        ImmutableSet.of("User"));
+    filtered = new LoggingDatastoreService(DatastoreServiceFactory.getAsyncDatastoreService(),
+        ImmutableMap.of("User", LogPolicy.all().exclude("email").truncateAbove(5)));
+    entity = new Entity("User", Uuids.NULL);
+    entity.setProperty("name", "Bob Lee");
+    entity.setProperty("email", "bob@present.co");
+    entity.setProperty("createdTime", System.currentTimeMillis());
+    entity.setUnindexedProperty("bio", new Text("Hello, World!"));
+  }
+
+  @TearDown public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Benchmark public Entity newPutOp() {
+    return service.newPutOp(entity);
+  }
+
+  @Benchmark public Entity newPutOpWithPolicy() {
+    return filtered.newPutOp(entity);
+  }
+}
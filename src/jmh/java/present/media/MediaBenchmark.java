@@ -0,0 +1,41 @@
+package present.media;
+
+import com.google.appengine.tools.development.testing.LocalImagesServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Benchmarks {@link Media}.
+ *
+ * @author Bob Lee (bob@present.co)
+ */
+@State(Scope.Thread)
+public class MediaBenchmark {
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalImagesServiceTestConfig());
+
+  private byte[] png;
+
+  @Setup public void setUp() throws IOException {
+    helper.setUp();
+    try (InputStream in = getClass().getResourceAsStream("/test.png")) {
+      png = ByteStreams.toByteArray(in);
+    }
+  }
+
+  @TearDown public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Benchmark public Media.Copy newCopy() throws IOException {
+    return new Media.Copy(Media.Type.PNG, png, null);
+  }
+}
@@ -0,0 +1,50 @@
+package present.objectify;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import present.engine.Uuids;
+import present.media.Media;
+
+/**
+ * Benchmarks {@link MoreObjectify}.
+ *
+ * @author Bob Lee (bob@present.co)
+ */
+@State(Scope.Thread)
+public class MoreObjectifyBenchmark {
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  private Closeable objectify;
+  private Media media;
+
+  @Setup public void setUp() {
+    helper.setUp();
+    Media.initialize();
+    objectify = ObjectifyService.begin();
+    media = new Media();
+    media.uuid = Uuids.NULL;
+    media.type = Media.Type.PNG;
+    media.url = "http://localhost:8081/gcs/media/" + Uuids.NULL + ".png";
+    media.uploadedBy = Uuids.NULL;
+    media.width = 128;
+    media.height = 128;
+  }
+
+  @TearDown public void tearDown() {
+    objectify.close();
+    helper.tearDown();
+  }
+
+  @Benchmark public String toString() {
+    return MoreObjectify.toString(media);
+  }
+}
@@ -0,0 +1,76 @@
+package present.rpc;
+
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import java.io.IOException;
+import okio.ByteString;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import present.engine.Uuids;
+import present.media.MediaService;
+import present.media.UploadRequest;
+
+/**
+ * Benchmarks {@link RpcQueue}.
+ *
+ * @author Bob Lee (bob@present.co)
+ */
+@State(Scope.Thread)
+public class RpcQueueBenchmark {
+
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+      new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true));
+
+  private MediaService service;
+  private UploadRequest request;
+
+  @Setup public void setUp() {
+    helper.setUp();
+    service = RpcQueue.create(MediaService.class);
+    request = new UploadRequest(Uuids.NULL, "image/png", ByteString.of(new byte[1024]));
+  }
+
+  /** Empties the queue so tasks don't pile up in the stub and slow later iterations. */
+  @TearDown(Level.Iteration) public void purge() {
+    LocalTaskQueueTestConfig.getLocalTaskQueue().flushQueue("default");
+  }
+
+  @TearDown public void tearDown() {
+    helper.tearDown();
+  }
+
+  /** Builds, encodes and enqueues a task against the local task queue stub. */
+  @Benchmark public void enqueue() throws IOException {
+    service.upload(request);
+  }
+
+  /** Builds and encodes tasks without enqueueing them. */
+  @Benchmark public void enqueueInBatch() {
+    try {
+      RpcQueue.batch(() -> {
+        try {
+          service.upload(request);
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+        throw new Discard();
+      });
+    } catch (Discard expected) {}
+  }
+
+  /** Generates a trace header. */
+  @Benchmark public String newTraceContext() {
+    return RpcQueue.newTraceContext();
+  }
+
+  /** Aborts a batch so its tasks aren't enqueued. */
+  private static class Discard extends RuntimeException {
+    Discard() {
+      super(null, null, false, false);
+    }
+  }
+}
@@ -2,35 +2,72 @@ package present.engine.log;
 
 import com.google.appengine.api.datastore.EmbeddedEntity;
 import com.google.appengine.api.datastore.PropertyContainer;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 import com.googlecode.objectify.Key;
 import com.googlecode.objectify.ObjectifyFactory;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
 import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.condition.IfNotNull;
+import com.googlecode.objectify.condition.ValueIf;
 import com.googlecode.objectify.impl.Path;
 import com.googlecode.objectify.impl.translate.SaveContext;
 import com.googlecode.objectify.impl.translate.Translator;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import present.engine.CurrentUser;
 
 import static com.googlecode.objectify.ObjectifyService.ofy;
 
 /**
- * Log of a datastore operation
+ * Log of a datastore operation. Deletes have a null entity. If {@link
+ * LoggingDatastoreService#deltas delta encoding} is on, puts may embed only the properties that
+ * changed since the previous version. Use {@link #reconstruct} to rebuild entities.
+ *
+ * <p>Indexing the increasing timestamp concentrates all log writes on one index range. Call
+ * {@link #setShards} to spread them across ranges instead, and use {@link #between} to query
+ * them in time order. Auto-allocated IDs are already scattered.
  *
  * @author Bob Lee (bob@present.co)
  */
 @Entity public class DatastoreOperation {
 
+  private static final Logger logger = LoggerFactory.getLogger(DatastoreOperation.class);
+
   @Id public Long id; // set automatically
   @Index public String userId;
-  @Index public long timestamp;
+  @Index(IfUnsharded.class) public long timestamp;
   @Index public Key<?> key;
   public EmbeddedEntity entity;
 
+  /**
+   * Timestamp prefixed with a shard number derived from the entity key. Set instead of indexing
+   * {@link #timestamp} when {@link #setShards sharded}.
+   */
+  @Index(IfNotNull.class) public Long shardTime;
+
+  /** Version of the entity, counting from the last full snapshot. Null if not tracked. */
+  public Long version;
+
+  /** True if {@link #entity} contains only properties that changed since the previous version. */
+  public boolean delta;
+
+  /** If this is a delta, names of properties removed since the previous version. */
+  public List<String> removed;
+
+  /** Names of properties truncated by the {@link LogPolicy}. */
+  public List<String> truncated;
+
   private DatastoreOperation(String userId, long timestamp, Key<?> key, EmbeddedEntity entity) {
     this.userId = userId;
     this.timestamp = timestamp;
+    this.shardTime = isSharded() ? shardTime(key.getRaw(), timestamp) : null;
     this.key = key;
     this.entity = entity;
   }
@@ -55,6 +92,159 @@ import static com.googlecode.objectify.ObjectifyService.ofy;
     ));
   }
 
+  /** Bits reserved for the timestamp in {@link #shardTime}. Good until the year 2248. */
+  static final int TIMESTAMP_BITS = 43;
+
+  private static volatile int shards;
+
+  /**
+   * Spreads newly logged operations across the given number of index ranges. Operations on
+   * the same entity share a shard. Inserts with incomplete keys go to random shards. Queries only
+   * see operations logged with the current layout, so pick a shard count once and keep it.
+   * Defaults to 0, which indexes the plain timestamp.
+   */
+  public static void setShards(int shards) {
+    Preconditions.checkArgument(shards >= 0 && shards <= 1024);
+    DatastoreOperation.shards = shards;
+  }
+
+  static boolean isSharded() {
+    return shards > 0;
+  }
+
+  static int shards() {
+    return shards;
+  }
+
+  /** Combines the shard for the given entity key and the timestamp into one sortable value. */
+  static long shardTime(com.google.appengine.api.datastore.Key key, long timestamp) {
+    return ((long) shardOf(key) << TIMESTAMP_BITS) | timestamp;
+  }
+
+  /**
+   * Hashes the key path. Unlike Key.hashCode(), doesn't depend on the app ID. Incomplete keys,
+   * from inserts with auto-allocated IDs, would all hash alike, so they get a random shard.
+   */
+  static int shardOf(com.google.appengine.api.datastore.Key key) {
+    if (!key.isComplete()) return ThreadLocalRandom.current().nextInt(shards);
+    int hash = 0;
+    for (com.google.appengine.api.datastore.Key k = key; k != null; k = k.getParent()) {
+      hash = 31 * hash + k.getKind().hashCode();
+      hash = 31 * hash + (k.getName() != null ? k.getName().hashCode() : Long.hashCode(k.getId()));
+    }
+    return Math.floorMod(hash, shards);
+  }
+
+  /** Indexes the timestamp only if the log isn't sharded. */
+  public static class IfUnsharded extends ValueIf<Object> {
+    @Override public boolean matchesValue(Object value) {
+      return !isSharded();
+    }
+  }
+
+  /**
+   * Iterates over operations logged in the given time range, oldest first. Shorthand for
+   * {@link DatastoreOperationReader#all()}.
+   *
+   * @param start inclusive
+   * @param end exclusive
+   */
+  public static Iterator<DatastoreOperation> between(long start, long end) {
+    return DatastoreOperationReader.all().between(start, end).iterator();
+  }
+
+  /**
+   * Rebuilds the entity with the given key as of the given time. Returns null if the entity didn't
+   * exist or was deleted. Reads operations back to the last full snapshot. Requires a composite
+   * index on key and descending timestamp, or descending shardTime if sharded.
+   *
+   * @throws IllegalStateException if a version since the last full snapshot is missing from the
+   *  log, because writing it failed for example
+   */
+  public static EmbeddedEntity reconstruct(Key<?> key, long timestamp) {
+    String order = Fields.timestamp.getName();
+    long max = timestamp;
+    if (isSharded()) {
+      order = Fields.shardTime.getName();
+      max = shardTime(key.getRaw(), timestamp);
+    }
+    List<DatastoreOperation> chain = new ArrayList<>();
+    for (DatastoreOperation op : ofy().load().type(DatastoreOperation.class)
+        .filter(Fields.key.getName(), key)
+        .filter(order + " <=", max)
+        .order("-" + order)
+        .iterable()) {
+      chain.add(op);
+      if (!op.delta) break;
+    }
+    return replay(Lists.reverse(chain));
+  }
+
+  /**
+   * Applies the given operations on one entity, oldest first, and returns the resulting entity.
+   * Returns null if the entity was deleted. Skips deltas older than the current version, which
+   * happens when two instances write the same entity concurrently.
+   *
+   * @throws IllegalStateException if a delta skips a version or no full snapshot precedes it
+   */
+  public static EmbeddedEntity replay(Iterable<DatastoreOperation> operations) {
+    Chain chain = new Chain();
+    operations.forEach(chain::apply);
+    return chain.entity();
+  }
+
+  /** Applies operations on one entity in order. */
+  static class Chain {
+
+    private EmbeddedEntity state;
+    private Long version;
+
+    /** Delta that didn't follow the previous version. Cleared by the next full snapshot. */
+    private DatastoreOperation broken;
+
+    void apply(DatastoreOperation op) {
+      if (!op.delta) {
+        state = op.entity == null ? null : copy(op.entity);
+        version = op.version;
+        broken = null;
+        return;
+      }
+      if (broken != null) return;
+      if (state != null && version != null && op.version != null && op.version <= version) {
+        // A concurrent write started a new chain.
+        logger.warn("Skipped stale delta {} of {}.", op.version, op.key);
+        return;
+      }
+      if (state == null || version == null || op.version == null || op.version != version + 1) {
+        broken = op;
+        return;
+      }
+      state.setPropertiesFrom(op.entity);
+      if (op.removed != null) op.removed.forEach(state::removeProperty);
+      version = op.version;
+    }
+
+    /**
+     * Returns the current state or null if the entity doesn't exist.
+     *
+     * @throws IllegalStateException if versions are missing since the last full snapshot
+     */
+    EmbeddedEntity entity() {
+      if (broken != null) {
+        throw new IllegalStateException("Can't apply delta " + broken.version + " of "
+            + broken.key + ". Expected version " + (version == null ? null : version + 1) + ".");
+      }
+      return state;
+    }
+  }
+
+  private static EmbeddedEntity copy(EmbeddedEntity entity) {
+    EmbeddedEntity copy = new EmbeddedEntity();
+    copy.setKey(entity.getKey());
+    copy.setPropertiesFrom(entity);
+    return copy;
+  }
+
   // Fields that may be used in filter queries as strings
   public static class Fields {
 
@@ -63,8 +253,13 @@ import static com.googlecode.objectify.ObjectifyService.ofy;
     public static Field id = get("id");
     public static Field userId = get("userId");
     public static Field timestamp = get("timestamp");
+    public static Field shardTime = get("shardTime");
     public static Field key = get("key");
     public static Field entity = get("entity");
+    public static Field version = get("version");
+    public static Field delta = get("delta");
+    public static Field removed = get("removed");
+    public static Field truncated = get("truncated");
 
     private static Field get(String fieldName) {
       try {
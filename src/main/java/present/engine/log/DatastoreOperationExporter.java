@@ -0,0 +1,95 @@
+package present.engine.log;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.function.Consumer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import present.engine.AppEngine;
+
+import static com.googlecode.objectify.ObjectifyService.ofy;
+
+/**
+ * Exports {@link DatastoreOperation}s to a local file. Each record is an EntityProto preceded by
+ * its varint length, the same framing as protobuf's writeDelimitedTo(). Read the records back
+ * with {@link #read}. For example:
+ *
+ * <pre>
+ *   DatastoreOperationExporter.export("api.present.co",
+ *       DatastoreOperationReader.forUser(userId), new File("operations.bin"));
+ * </pre>
+ *
+ * @author Bob Lee (bob@present.co)
+ */
+public class DatastoreOperationExporter {
+
+  private static final Logger logger = LoggerFactory.getLogger(DatastoreOperationExporter.class);
+
+  private DatastoreOperationExporter() {}
+
+  /**
+   * Streams operations from the given server to the file using the Remote API.
+   *
+   * @return the number of operations written
+   */
+  public static long export(String server, DatastoreOperationReader reader, File file) {
+    long[] count = new long[1];
+    AppEngine.against(server, () -> count[0] = write(reader, file));
+    logger.info("Exported {} operations to {}.", count[0], file);
+    return count[0];
+  }
+
+  /** Writes operations from the current environment to the file. */
+  static long write(DatastoreOperationReader reader, File file) throws IOException {
+    long count = 0;
+    try (BufferedSink sink = Okio.buffer(Okio.sink(file))) {
+      for (Iterator<Entity> i = reader.entities(); i.hasNext(); count++) {
+        byte[] record = EntityTranslator.convertToPb(i.next()).toByteArray();
+        writeVarint(sink, record.length);
+        sink.write(record);
+      }
+    }
+    return count;
+  }
+
+  /** Passes each operation in an exported file to the consumer. */
+  public static void read(File file, Consumer<DatastoreOperation> consumer) throws IOException {
+    try (BufferedSource source = Okio.buffer(Okio.source(file))) {
+      while (!source.exhausted()) {
+        byte[] record = source.readByteArray(readVarint(source));
+        consumer.accept(ofy().load().fromEntity(EntityTranslator.createFromPbBytes(record)));
+      }
+    }
+  }
+
+  private static void writeVarint(BufferedSink sink, int value) throws IOException {
+    while ((value & ~0x7f) != 0) {
+      sink.writeByte((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    sink.writeByte(value);
+  }
+
+  private static int readVarint(BufferedSource source) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      byte b = source.readByte();
+      value |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) return value;
+    }
+    throw new IOException("Malformed length.");
+  }
+
+  /** Usage: DatastoreOperationExporter server file [start end] */
+  public static void main(String[] args) {
+    DatastoreOperationReader reader = DatastoreOperationReader.all();
+    if (args.length == 4) reader.between(Long.parseLong(args[2]), Long.parseLong(args[3]));
+    export(args[0], reader, new File(args[1]));
+  }
+}
@@ -0,0 +1,63 @@
+package present.engine.log;
+
+import java.io.IOException;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+/**
+ * Buffers operations logged by {@link LoggingDatastoreService} during a request and writes them
+ * in batches, once the buffer fills up and at the end of the request. A request that dies
+ * abruptly loses at most {@link LoggingDatastoreService#setMaxBufferSize} operations.
+ *
+ * To use, add this to web.xml before other filters that write to the datastore:
+ *
+ * <pre>
+ *   <filter>
+ *     <filter-name>datastoreOperations</filter-name>
+ *     <filter-class>present.engine.log.DatastoreOperationFilter</filter-class>
+ *   </filter>
+ *   <filter-mapping>
+ *     <filter-name>datastoreOperations</filter-name>
+ *     <url-pattern>/*</url-pattern>
+ *   </filter-mapping>
+ * </pre>
+ *
+ * @author Bob Lee (bob@present.co)
+ */
+public class DatastoreOperationFilter implements Filter {
+
+  private static volatile boolean flushOnError = true;
+
+  /**
+   * Whether to write buffered operations when the request throws. Defaults to true because
+   * non-transactional writes may have succeeded before the failure. Set to false to drop them.
+   */
+  public static void setFlushOnError(boolean flush) {
+    flushOnError = flush;
+  }
+
+  @Override public void init(FilterConfig config) {}
+
+  @Override public void destroy() {}
+
+  @Override public void doFilter(ServletRequest request, ServletResponse response,
+      FilterChain chain) throws IOException, ServletException {
+    LoggingDatastoreService.Buffer buffer = LoggingDatastoreService.startBuffering();
+    if (buffer == null) {
+      chain.doFilter(request, response);
+      return;
+    }
+    boolean failed = true;
+    try {
+      chain.doFilter(request, response);
+      failed = false;
+    } finally {
+      if (!failed || flushOnError) buffer.flush();
+      buffer.close();
+    }
+  }
+}
@@ -0,0 +1,200 @@
+package present.engine.log;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import present.engine.log.DatastoreOperation.Fields;
+
+import static com.googlecode.objectify.ObjectifyService.ofy;
+
+/**
+ * Streams logged {@link DatastoreOperation}s a page at a time. Continues each page from the
+ * previous page's cursor, so memory stays bounded and reads can outlast a query's deadline.
+ * Bypasses Objectify's session cache.
+ *
+ * <pre>
+ *   for (DatastoreOperation op : DatastoreOperationReader.forUser(userId).between(start, end)) {
+ *     ...
+ *   }
+ * </pre>
+ *
+ * Returns operations oldest first, except for {@link #forRootKind} readers. If the log is
+ * {@link DatastoreOperation#setShards sharded}, user and time range readers merge one query per
+ * shard and hold a page per shard.
+ *
+ * @author Bob Lee (bob@present.co)
+ */
+public class DatastoreOperationReader implements Iterable<DatastoreOperation> {
+
+  private final Key key;
+  private final String userId;
+  private final String rootKind;
+
+  private long start = 0;
+  private long end = 1L << DatastoreOperation.TIMESTAMP_BITS;
+  private int pageSize = 500;
+
+  private DatastoreOperationReader(Key key, String userId, String rootKind) {
+    this.key = key;
+    this.userId = userId;
+    this.rootKind = rootKind;
+  }
+
+  /** Reads all operations. */
+  public static DatastoreOperationReader all() {
+    return new DatastoreOperationReader(null, null, null);
+  }
+
+  /** Reads operations on the given entity. */
+  public static DatastoreOperationReader forKey(com.googlecode.objectify.Key<?> key) {
+    return new DatastoreOperationReader(key.getRaw(), null, null);
+  }
+
+  /** Reads operations by the given user. */
+  public static DatastoreOperationReader forUser(String userId) {
+    return new DatastoreOperationReader(null, Preconditions.checkNotNull(userId), null);
+  }
+
+  /**
+   * Reads operations on root entities of the given kind and their descendants, ordered by
+   * key and then time. Requires a composite index on key and timestamp, or shardTime if
+   * sharded.
+   */
+  public static DatastoreOperationReader forRootKind(String kind) {
+    return new DatastoreOperationReader(null, null, Preconditions.checkNotNull(kind));
+  }
+
+  /**
+   * Limits operations to the given time range.
+   *
+   * @param start inclusive
+   * @param end exclusive
+   */
+  public DatastoreOperationReader between(long start, long end) {
+    Preconditions.checkArgument(start >= 0 && start <= end);
+    this.start = start;
+    this.end = Math.min(end, 1L << DatastoreOperation.TIMESTAMP_BITS);
+    return this;
+  }
+
+  /** Sets the number of operations to fetch per query. Defaults to 500. */
+  public DatastoreOperationReader pageSize(int pageSize) {
+    Preconditions.checkArgument(pageSize > 0);
+    this.pageSize = pageSize;
+    return this;
+  }
+
+  @Override public Iterator<DatastoreOperation> iterator() {
+    return Iterators.transform(entities(), entity -> ofy().load().fromEntity(entity));
+  }
+
+  /** Iterates over the operations' underlying entities. */
+  Iterator<Entity> entities() {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    if (rootKind != null) {
+      Iterator<Entity> entities = new Pager(datastore, kindQuery());
+      if (start == 0 && end == 1L << DatastoreOperation.TIMESTAMP_BITS) return entities;
+      // Only one property can have inequality filters.
+      return Iterators.filter(entities, entity -> {
+        long timestamp = timestampOf(entity);
+        return timestamp >= start && timestamp < end;
+      });
+    }
+    if (!DatastoreOperation.isSharded()) {
+      return new Pager(datastore, timeQuery(Fields.timestamp.getName(), start, end));
+    }
+    String shardTime = Fields.shardTime.getName();
+    if (key != null) {
+      long prefix = (long) DatastoreOperation.shardOf(key) << DatastoreOperation.TIMESTAMP_BITS;
+      return new Pager(datastore, timeQuery(shardTime, prefix | start, prefix | end));
+    }
+    int shards = DatastoreOperation.shards();
+    List<Iterator<Entity>> iterators = new ArrayList<>(shards);
+    for (long shard = 0; shard < shards; shard++) {
+      long prefix = shard << DatastoreOperation.TIMESTAMP_BITS;
+      iterators.add(new Pager(datastore, timeQuery(shardTime, prefix | start, prefix | end)));
+    }
+    return Iterators.mergeSorted(iterators,
+        Comparator.comparingLong(DatastoreOperationReader::timestampOf));
+  }
+
+  private Query timeQuery(String property, long start, long end) {
+    List<Filter> filters = new ArrayList<>();
+    if (key != null) {
+      filters.add(new FilterPredicate(Fields.key.getName(), FilterOperator.EQUAL, key));
+    }
+    if (userId != null) {
+      filters.add(new FilterPredicate(Fields.userId.getName(), FilterOperator.EQUAL, userId));
+    }
+    filters.add(new FilterPredicate(property, FilterOperator.GREATER_THAN_OR_EQUAL, start));
+    filters.add(new FilterPredicate(property, FilterOperator.LESS_THAN, end));
+    return new Query(DatastoreOperation.class.getSimpleName())
+        .setFilter(CompositeFilterOperator.and(filters))
+        .addSort(property);
+  }
+
+  private Query kindQuery() {
+    // Keys of one root kind sort together. "\0" is the smallest suffix.
+    String key = Fields.key.getName();
+    return new Query(DatastoreOperation.class.getSimpleName())
+        .setFilter(CompositeFilterOperator.and(
+            new FilterPredicate(key, FilterOperator.GREATER_THAN_OR_EQUAL,
+                KeyFactory.createKey(rootKind, 1)),
+            new FilterPredicate(key, FilterOperator.LESS_THAN,
+                KeyFactory.createKey(rootKind + "\0", 1))))
+        .addSort(key)
+        .addSort(DatastoreOperation.isSharded()
+            ? Fields.shardTime.getName() : Fields.timestamp.getName());
+  }
+
+  private static long timestampOf(Entity entity) {
+    return (Long) entity.getProperty(Fields.timestamp.getName());
+  }
+
+  /** Runs a query one page at a time. */
+  private class Pager extends AbstractIterator<Entity> {
+
+    private final DatastoreService datastore;
+    private final Query query;
+
+    private Iterator<Entity> page = Collections.emptyIterator();
+    private Cursor cursor;
+    private boolean last;
+
+    private Pager(DatastoreService datastore, Query query) {
+      this.datastore = datastore;
+      this.query = query;
+    }
+
+    @Override protected Entity computeNext() {
+      while (!page.hasNext()) {
+        if (last) return endOfData();
+        FetchOptions options = FetchOptions.Builder.withLimit(pageSize);
+        if (cursor != null) options.startCursor(cursor);
+        QueryResultList<Entity> results = datastore.prepare(query).asQueryResultList(options);
+        cursor = results.getCursor();
+        last = results.size() < pageSize;
+        page = results.iterator();
+      }
+      return page.next();
+    }
+  }
+}
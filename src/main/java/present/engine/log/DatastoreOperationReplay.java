@@ -0,0 +1,61 @@
+package present.engine.log;
+
+import com.google.appengine.api.datastore.EmbeddedEntity;
+import com.google.appengine.api.datastore.Entity;
+import com.googlecode.objectify.Key;
+import java.util.function.Consumer;
+
+/**
+ * Reconstructs entities as of a point in time from the {@link DatastoreOperation} log.
+ *
+ * @author Bob Lee (bob@present.co)
+ */
+public class DatastoreOperationReplay {
+
+  private DatastoreOperationReplay() {}
+
+  /**
+   * Returns the entity as of the given time or null if it didn't exist.
+   *
+   * @throws IllegalStateException if versions of the entity are missing from the log
+   */
+  public static Entity entity(Key<?> key, long timestamp) {
+    return toEntity(key, DatastoreOperation.reconstruct(key, timestamp));
+  }
+
+  /**
+   * Passes each root entity of the given kind that existed at the given time to the consumer, in
+   * key order. Streams the log, so memory is bounded by one entity at a time. Requires
+   * {@link DatastoreOperationReader#forRootKind}'s index.
+   *
+   * @throws IllegalStateException if versions of an entity are missing from the log
+   */
+  public static void kind(String kind, long timestamp, Consumer<Entity> consumer) {
+    Key<?> key = null;
+    DatastoreOperation.Chain chain = null;
+    for (DatastoreOperation op : DatastoreOperationReader.forRootKind(kind)
+        .between(0, timestamp + 1)) {
+      // Skip descendants.
+      if (op.key.getParent() != null) continue;
+      if (!op.key.equals(key)) {
+        if (chain != null) emit(key, chain, consumer);
+        key = op.key;
+        chain = new DatastoreOperation.Chain();
+      }
+      chain.apply(op);
+    }
+    if (chain != null) emit(key, chain, consumer);
+  }
+
+  private static void emit(Key<?> key, DatastoreOperation.Chain chain, Consumer<Entity> consumer) {
+    Entity entity = toEntity(key, chain.entity());
+    if (entity != null) consumer.accept(entity);
+  }
+
+  private static Entity toEntity(Key<?> key, EmbeddedEntity embedded) {
+    if (embedded == null) return null;
+    Entity entity = new Entity(key.getRaw());
+    entity.setPropertiesFrom(embedded);
+    return entity;
+  }
+}
@@ -0,0 +1,157 @@
+package present.engine.log;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.EmbeddedEntity;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Text;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Determines what {@link LoggingDatastoreService} logs for a kind. Logs every put with all
+ * properties by default:
+ *
+ * <pre>
+ *   Map<String, LogPolicy> policies = ImmutableMap.of(
+ *       "User", LogPolicy.all().exclude("passwordHash"),
+ *       "Photo", LogPolicy.all().truncateAbove(1024).sample(0.1));
+ *   new LoggingDatastoreService(delegate, policies);
+ * </pre>
+ *
+ * Replays only see logged properties. The service compiles policies when it's created. Later
+ * changes have no effect.
+ *
+ * @author Bob Lee (bob@present.co)
+ */
+public class LogPolicy {
+
+  private ImmutableSet<String> include;
+  private ImmutableSet<String> exclude = ImmutableSet.of();
+  private int maxSize = Integer.MAX_VALUE;
+  private double rate = 1;
+
+  private LogPolicy() {}
+
+  /** Logs all properties of every put. */
+  public static LogPolicy all() {
+    return new LogPolicy();
+  }
+
+  /** Logs only the given properties. */
+  public LogPolicy include(String... properties) {
+    this.include = ImmutableSet.copyOf(properties);
+    return this;
+  }
+
+  /** Doesn't log the given properties. */
+  public LogPolicy exclude(String... properties) {
+    this.exclude = ImmutableSet.copyOf(properties);
+    return this;
+  }
+
+  /**
+   * Truncates Text values longer than the given number of characters and Blob values longer
+   * than the given number of bytes. Records truncated property names in
+   * {@link DatastoreOperation#truncated}.
+   */
+  public LogPolicy truncateAbove(int maxSize) {
+    Preconditions.checkArgument(maxSize >= 0);
+    this.maxSize = maxSize;
+    return this;
+  }
+
+  /**
+   * Logs the given fraction of puts, chosen at random. Deletes are always logged so replays
+   * don't resurrect deleted entities.
+   */
+  public LogPolicy sample(double rate) {
+    Preconditions.checkArgument(rate > 0 && rate <= 1);
+    this.rate = rate;
+    return this;
+  }
+
+  Compiled compile() {
+    return new Compiled(this);
+  }
+
+  /** Immutable form of a policy, optimized for the write path. */
+  static class Compiled {
+
+    /** Null if all properties not excluded are included. */
+    private final String[] include;
+    private final ImmutableSet<String> exclude;
+    private final int maxSize;
+    private final double rate;
+    private final boolean copyAll;
+
+    private Compiled(LogPolicy policy) {
+      this.include = policy.include == null ? null
+          : Sets.difference(policy.include, policy.exclude).toArray(new String[0]);
+      this.exclude = policy.include == null ? policy.exclude : ImmutableSet.of();
+      this.maxSize = policy.maxSize;
+      this.rate = policy.rate;
+      this.copyAll = include == null && exclude.isEmpty() && maxSize == Integer.MAX_VALUE;
+    }
+
+    /** Returns true if this put should be logged. */
+    boolean sample() {
+      return rate == 1 || ThreadLocalRandom.current().nextDouble() < rate;
+    }
+
+    /**
+     * Copies the logged properties of the entity to the embedded entity. Returns the names of
+     * truncated properties or null if none were truncated.
+     */
+    List<String> copy(Entity entity, EmbeddedEntity embedded) {
+      if (copyAll) {
+        embedded.setPropertiesFrom(entity);
+        return null;
+      }
+      List<String> truncated = null;
+      if (include != null) {
+        for (String name : include) {
+          if (entity.hasProperty(name)) truncated = copy(entity, name, embedded, truncated);
+        }
+      } else {
+        for (Map.Entry<String, Object> property : entity.getProperties().entrySet()) {
+          String name = property.getKey();
+          if (!exclude.contains(name)) truncated = copy(entity, name, embedded, truncated);
+        }
+      }
+      return truncated;
+    }
+
+    private List<String> copy(Entity entity, String name, EmbeddedEntity embedded,
+        List<String> truncated) {
+      Object value = entity.getProperty(name);
+      Object logged = truncate(value);
+      if (logged != value) {
+        if (truncated == null) truncated = new ArrayList<>();
+        truncated.add(name);
+      }
+      if (entity.isUnindexedProperty(name)) {
+        embedded.setUnindexedProperty(name, logged);
+      } else {
+        embedded.setProperty(name, logged);
+      }
+      return truncated;
+    }
+
+    private Object truncate(Object value) {
+      if (value instanceof Text) {
+        String text = ((Text) value).getValue();
+        if (text != null && text.length() > maxSize) return new Text(text.substring(0, maxSize));
+      } else if (value instanceof Blob) {
+        byte[] bytes = ((Blob) value).getBytes();
+        if (bytes.length > maxSize) return new Blob(Arrays.copyOf(bytes, maxSize));
+      }
+      return value;
+    }
+  }
+}
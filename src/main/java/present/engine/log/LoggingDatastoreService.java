@@ -5,36 +5,103 @@ import com.google.appengine.api.datastore.EmbeddedEntity;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Streams;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import present.engine.CurrentUser;
 import present.engine.Futures;
 import present.engine.log.DatastoreOperation.Fields;
 import present.objectify.ForwardingDatastoreService;
 
 /**
- * Logs puts and deletes for specified kinds.
+ * Logs puts and deletes for specified kinds, according to each kind's {@link LogPolicy}. Within
+ * a {@link DatastoreOperationFilter} request, buffers operations and writes them in batches.
+ * Otherwise, writes them right away.
  *
  * @author Bob Lee (bob@present.co)
  */
 public class LoggingDatastoreService extends ForwardingDatastoreService {
 
-  private final Set<String> kinds;
+  private static final Logger logger = LoggerFactory.getLogger(LoggingDatastoreService.class);
 
+  private static final ThreadLocal<Buffer> buffers = new ThreadLocal<>();
+
+  private static volatile int maxBufferSize = 100;
+
+  /**
+   * Sets the number of buffered operations that triggers a write. Bounds how many operations
+   * a request can lose if it dies before the end. Defaults to 100.
+   */
+  public static void setMaxBufferSize(int max) {
+    Preconditions.checkArgument(max > 0 && max <= 500, "Must be between 1 and 500.");
+    maxBufferSize = max;
+  }
+
+  private final Map<String, LogPolicy.Compiled> policies;
+  private volatile int snapshotInterval;
+
+  /** Logs all properties of every put and delete of the given kinds. */
   public LoggingDatastoreService(AsyncDatastoreService delegate, Set<String> kinds) {
+    this(delegate, Maps.asMap(kinds, kind -> LogPolicy.all()));
+  }
+
+  /** Logs puts and deletes of the given kinds according to their policies. */
+  public LoggingDatastoreService(AsyncDatastoreService delegate,
+      Map<String, LogPolicy> policies) {
     super(delegate);
-    this.kinds = kinds;
+    this.policies = new HashMap<>();
+    policies.forEach((kind, policy) -> this.policies.put(kind, policy.compile()));
+  }
+
+  /**
+   * Logs only the properties that changed since the previous version of an entity, with a full
+   * snapshot every {@code snapshotInterval} versions. Keeps the previous version in memcache,
+   * which costs two memcache calls per logged put. Falls back to a full snapshot when memcache
+   * loses the previous version, the version is too large for memcache, another instance writes
+   * the same entity concurrently or the key is incomplete. If a logged operation is lost,
+   * {@link DatastoreOperation#reconstruct} fails until the entity's next full snapshot.
+   * Compares property values only; changing only whether a property is indexed isn't logged.
+   */
+  public LoggingDatastoreService deltas(int snapshotInterval) {
+    Preconditions.checkArgument(snapshotInterval > 0);
+    this.snapshotInterval = snapshotInterval;
+    return this;
   }
 
   @Override public Future<Key> put(Entity entity) {
     if (shouldLog(entity)) {
       Entity op = newPutOp(entity);
-      return Futures.map(put(Lists.newArrayList(entity, op)), keys -> keys.get(0));
+      if (buffers.get() != null) {
+        Future<Key> f = delegate.put(entity);
+        log(Collections.singletonList(op));
+        return f;
+      }
+      // Write the entity and operation in one call.
+      return Futures.map(delegate.put(Lists.newArrayList(entity, op)), keys -> keys.get(0));
     } else {
       return delegate.put(entity);
     }
@@ -43,8 +110,7 @@ public class LoggingDatastoreService extends ForwardingDatastoreService {
   @Override public Future<Key> put(Transaction transaction, Entity entity) {
     if (shouldLog(entity)) {
       Future<Key> f = delegate.put(transaction, entity);
-      Entity op = newPutOp(entity);
-      delegate.put(op);
+      log(Collections.singletonList(newPutOp(entity)));
       return f;
     } else {
       return delegate.put(transaction, entity);
@@ -72,7 +138,7 @@ public class LoggingDatastoreService extends ForwardingDatastoreService {
         .filter(this::shouldLog)
         .map(this::newPutOp)
         .collect(Collectors.toList());
-    if (!operations.isEmpty()) put(operations);
+    if (!operations.isEmpty()) log(operations);
   }
 
   @Override public Future<Void> delete(Iterable<Key> iterable) {
@@ -100,18 +166,87 @@ public class LoggingDatastoreService extends ForwardingDatastoreService {
         .filter(this::shouldLog)
         .map(this::newDeleteOp)
         .collect(Collectors.toList());
-    if (!operations.isEmpty()) put(operations);
+    if (!operations.isEmpty()) log(operations);
+  }
+
+  /** Buffers the given operations or writes them right away if we aren't buffering. */
+  private void log(List<Entity> operations) {
+    Buffer buffer = buffers.get();
+    if (buffer == null) {
+      delegate.put(operations);
+    } else {
+      buffer.add(delegate, operations);
+    }
   }
 
-  private Entity newPutOp(Entity entity) {
-    Entity op = newOp(entity.getKey());
+  Entity newPutOp(Entity entity) {
     EmbeddedEntity embedded = new EmbeddedEntity();
-    embedded.setPropertiesFrom(entity);
+    List<String> truncated = policies.get(entity.getKind()).copy(entity, embedded);
+    Entity op;
+    // New entities' incomplete keys all look alike, so they can't identify a chain.
+    if (snapshotInterval > 0 && entity.getKey().isComplete()) {
+      op = newDeltaOp(entity.getKey(), embedded);
+    } else {
+      op = newOp(entity.getKey());
+      op.setProperty(Fields.entity.getName(), embedded);
+    }
+    if (truncated != null) op.setUnindexedProperty(Fields.truncated.getName(), truncated);
+    return op;
+  }
+
+  /** Leaves room under memcache's 1MB value limit for the key and overhead. */
+  private static final int MAX_VERSION_SIZE = 1000 * 1000 - 4 * 1024;
+
+  /** Logs the properties in {@code logged} that changed since the previous version. */
+  private Entity newDeltaOp(Key key, EmbeddedEntity logged) {
+    MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+    MemcacheService.IdentifiableValue current = memcache.getIdentifiable(key);
+    Version previous = current == null ? null : Version.fromBytes((byte[]) current.getValue());
+    long number = previous == null ? 0 : previous.number + 1;
+    byte[] next = new Version(number, logged.getProperties()).toBytes();
+    boolean full = previous == null || number % snapshotInterval == 0;
+    boolean stored = next.length <= MAX_VERSION_SIZE && (current == null
+        ? memcache.put(key, next, null, MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT)
+        : memcache.putIfUntouched(key, current, next));
+    if (!stored) {
+      // Another instance logged a version concurrently, or the version is too large to cache.
+      // Start a new chain.
+      memcache.delete(key);
+      full = true;
+    }
+
+    Entity op = newOp(key);
+    op.setUnindexedProperty(Fields.version.getName(), number);
+    EmbeddedEntity embedded = logged;
+    if (!full) {
+      embedded = new EmbeddedEntity();
+      List<String> removed = new ArrayList<>();
+      for (String name : previous.properties.keySet()) {
+        if (!logged.hasProperty(name)) removed.add(name);
+      }
+      for (Map.Entry<String, Object> property : logged.getProperties().entrySet()) {
+        String name = property.getKey();
+        Object value = property.getValue();
+        if (previous.properties.containsKey(name)
+            && Objects.equals(previous.properties.get(name), value)) {
+          continue;
+        }
+        if (logged.isUnindexedProperty(name)) {
+          embedded.setUnindexedProperty(name, value);
+        } else {
+          embedded.setProperty(name, value);
+        }
+      }
+      op.setUnindexedProperty(Fields.delta.getName(), true);
+      if (!removed.isEmpty()) op.setUnindexedProperty(Fields.removed.getName(), removed);
+    }
     op.setProperty(Fields.entity.getName(), embedded);
     return op;
   }
 
   private Entity newDeleteOp(Key key) {
+    // The next put starts a new chain.
+    if (snapshotInterval > 0) MemcacheServiceFactory.getMemcacheService().delete(key);
     Entity op = newOp(key);
     op.setProperty(Fields.entity.getName(), null);
     return op;
@@ -120,16 +255,145 @@ public class LoggingDatastoreService extends ForwardingDatastoreService {
   private Entity newOp(Key key) {
     Entity op = new Entity(DatastoreOperation.class.getSimpleName());
     op.setProperty(Fields.userId.getName(), CurrentUser.id());
-    op.setProperty(Fields.timestamp.getName(), System.currentTimeMillis());
+    long now = System.currentTimeMillis();
+    if (DatastoreOperation.isSharded()) {
+      op.setUnindexedProperty(Fields.timestamp.getName(), now);
+      op.setProperty(Fields.shardTime.getName(), DatastoreOperation.shardTime(key, now));
+    } else {
+      op.setProperty(Fields.timestamp.getName(), now);
+    }
     op.setProperty(Fields.key.getName(), key);
     return op;
   }
 
   private boolean shouldLog(Entity entity) {
-    return kinds.contains(entity.getKind());
+    LogPolicy.Compiled policy = policies.get(entity.getKind());
+    return policy != null && policy.sample();
   }
 
   private boolean shouldLog(Key key) {
-    return kinds.contains(key.getKind());
+    return policies.containsKey(key.getKind());
+  }
+
+  /**
+   * Makes the next put of each entity in the given lost operations start a new chain, so later
+   * deltas don't build on versions missing from the log.
+   */
+  private static void forgetVersions(List<Entity> operations) {
+    List<Key> keys = operations.stream()
+        .filter(op -> op.hasProperty(Fields.version.getName()))
+        .map(op -> (Key) op.getProperty(Fields.key.getName()))
+        .collect(Collectors.toList());
+    if (!keys.isEmpty()) MemcacheServiceFactory.getMemcacheService().deleteAll(keys);
+  }
+
+  /**
+   * Previous version of an entity, kept in memcache to compute deltas. Stored serialized so we
+   * can check the size.
+   */
+  private static class Version implements Serializable {
+
+    private static final long serialVersionUID = 0;
+
+    private final long number;
+    private final HashMap<String, Object> properties;
+
+    private Version(long number, Map<String, Object> properties) {
+      this.number = number;
+      this.properties = new HashMap<>(properties);
+    }
+
+    private byte[] toBytes() {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+        out.writeObject(this);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      return bytes.toByteArray();
+    }
+
+    private static Version fromBytes(byte[] bytes) {
+      try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+        return (Version) in.readObject();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      } catch (ClassNotFoundException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+
+  /**
+   * Starts buffering operations on this thread. Returns null if we're already buffering.
+   * The caller must close the buffer.
+   */
+  static Buffer startBuffering() {
+    if (buffers.get() != null) return null;
+    Buffer buffer = new Buffer();
+    buffers.set(buffer);
+    return buffer;
+  }
+
+  /** Operations logged during one request. */
+  static class Buffer implements AutoCloseable {
+
+    private AsyncDatastoreService delegate;
+    private final List<Entity> operations = new ArrayList<>();
+    private final Map<Future<List<Key>>, List<Entity>> writes = new LinkedHashMap<>();
+
+    private Buffer() {}
+
+    private void add(AsyncDatastoreService delegate, List<Entity> operations) {
+      if (this.delegate != null && this.delegate != delegate) flush();
+      this.delegate = delegate;
+      this.operations.addAll(operations);
+      if (this.operations.size() >= maxBufferSize) flush();
+    }
+
+    /** Starts writing buffered operations in the background. */
+    void flush() {
+      if (operations.isEmpty()) return;
+      // The datastore accepts up to 500 entities per call.
+      for (List<Entity> batch : Lists.partition(operations, 500)) {
+        List<Entity> copy = new ArrayList<>(batch);
+        writes.put(delegate.put(copy), copy);
+      }
+      operations.clear();
+    }
+
+    /** Drops buffered operations. */
+    void discard() {
+      if (operations.isEmpty()) return;
+      logger.warn("Discarded {} logged operations.", operations.size());
+      forgetVersions(operations);
+      operations.clear();
+    }
+
+    /**
+     * Stops buffering, discards operations that haven't been flushed and waits for writes.
+     * Logs failed writes instead of failing the request.
+     */
+    @Override public void close() {
+      buffers.remove();
+      discard();
+      int lost = 0;
+      Throwable failure = null;
+      for (Map.Entry<Future<List<Key>>, List<Entity>> write : writes.entrySet()) {
+        try {
+          write.getKey().get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          lost += write.getValue().size();
+          forgetVersions(write.getValue());
+        } catch (ExecutionException e) {
+          lost += write.getValue().size();
+          forgetVersions(write.getValue());
+          failure = e.getCause();
+        }
+      }
+      writes.clear();
+      if (lost > 0) logger.error("Failed to write {} logged operations.", lost, failure);
+    }
   }
 }
@@ -1,16 +1,17 @@
 package present.media;
 
-import com.google.api.client.util.ByteStreams;
 import com.google.appengine.api.utils.SystemProperty;
 import com.google.appengine.tools.cloudstorage.GcsFileMetadata;
 import com.google.appengine.tools.cloudstorage.GcsFilename;
 import com.google.appengine.tools.cloudstorage.GcsInputChannel;
 import com.google.appengine.tools.cloudstorage.GcsService;
 import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
-import com.google.apphosting.api.ApiProxy;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
-import javax.servlet.ServletException;
+import java.nio.channels.WritableByteChannel;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -21,13 +22,22 @@ import present.engine.AppEngine;
 import static com.google.appengine.api.utils.SystemProperty.Environment.Value.Development;
 
 /**
- * Serves GCS files in development. Uses "development" for the bucket name.
+ * Serves GCS files in development. Uses "development" for the bucket name. Supports single byte
+ * ranges and conditional requests (ETag and Last-Modified) like the production CDN.
  *
  * @author Bob Lee (bob@present.co)
  */
 public class GcsDevelopmentServlet extends HttpServlet {
   private static final Logger logger = LoggerFactory.getLogger(GcsDevelopmentServlet.class);
 
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** Reusable per-thread buffers. Direct so GCS channels can read into them without copying. */
+  private static final ThreadLocal<ByteBuffer> buffers
+      = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+  private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
   @Override protected void doGet(HttpServletRequest request, HttpServletResponse response)
       throws IOException {
     if (SystemProperty.environment.value() != Development) {
@@ -43,9 +53,112 @@ public class GcsDevelopmentServlet extends HttpServlet {
       response.sendError(404);
       return;
     }
+
+    long length = metadata.getLength();
+    long lastModified = metadata.getLastModified().getTime();
+    // The local GCS service doesn't always provide ETags.
+    String etag = '"' + (metadata.getEtag() != null ? metadata.getEtag()
+        : Long.toHexString(lastModified) + "-" + Long.toHexString(length)) + '"';
+    response.setHeader("ETag", etag);
+    response.setDateHeader("Last-Modified", lastModified);
+    response.setHeader("Accept-Ranges", "bytes");
+    if (notModified(request, etag, lastModified)) {
+      response.setStatus(304);
+      return;
+    }
+
+    long start = 0;
+    long end = length - 1;
+    String range = request.getHeader("Range");
+    if (range != null && ifRange(request, etag, lastModified)) {
+      Matcher matcher = RANGE.matcher(range);
+      // Ignore multiple ranges and malformed headers. Serve the whole file instead.
+      if (matcher.matches() && !(matcher.group(1).isEmpty() && matcher.group(2).isEmpty())) {
+        if (matcher.group(1).isEmpty()) {
+          // Suffix: the last N bytes
+          start = Math.max(0, length - parseBound(matcher.group(2)));
+        } else {
+          start = parseBound(matcher.group(1));
+          if (!matcher.group(2).isEmpty()) end = Math.min(end, parseBound(matcher.group(2)));
+        }
+        if (start >= length || start > end) {
+          response.setHeader("Content-Range", "bytes */" + length);
+          response.sendError(416);
+          return;
+        }
+        response.setStatus(206);
+        response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+      }
+    }
+
     response.setContentType(metadata.getOptions().getMimeType());
-    response.setContentLength((int) metadata.getLength());
-    GcsInputChannel channel = gcsService.openReadChannel(file, 0);
-    ByteStreams.copy(Channels.newInputStream(channel), response.getOutputStream());
+    response.setContentLengthLong(end - start + 1);
+    // HttpServlet.doHead() delegates to doGet().
+    if (request.getMethod().equals("HEAD")) return;
+    try (GcsInputChannel in = gcsService.openReadChannel(file, start)) {
+      copy(in, Channels.newChannel(response.getOutputStream()), end - start + 1);
+    }
+  }
+
+  /** Returns true if the client's cached copy is still valid. */
+  private static boolean notModified(HttpServletRequest request, String etag,
+      long lastModified) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      // If-None-Match takes precedence over If-Modified-Since.
+      for (String tag : ifNoneMatch.split(",")) {
+        tag = tag.trim();
+        if (tag.startsWith("W/")) tag = tag.substring(2);
+        if (tag.equals("*") || tag.equals(etag)) return true;
+      }
+      return false;
+    }
+    long ifModifiedSince = dateHeader(request, "If-Modified-Since");
+    // HTTP dates have second precision.
+    return ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+  }
+
+  /** Returns true if we should honor the Range header. */
+  private static boolean ifRange(HttpServletRequest request, String etag, long lastModified) {
+    String ifRange = request.getHeader("If-Range");
+    if (ifRange == null) return true;
+    if (ifRange.startsWith("\"")) return ifRange.equals(etag);
+    // A malformed date never matches, so we serve the whole file.
+    long date = dateHeader(request, "If-Range");
+    return date != -1 && lastModified / 1000 <= date / 1000;
+  }
+
+  /** Returns the given date header or -1 if it's missing or malformed. */
+  private static long dateHeader(HttpServletRequest request, String name) {
+    try {
+      return request.getDateHeader(name);
+    } catch (IllegalArgumentException e) {
+      return -1;
+    }
+  }
+
+  /** Parses a range bound. Bounds too big for a long are past the end of any file. */
+  private static long parseBound(String digits) {
+    try {
+      return Long.parseLong(digits);
+    } catch (NumberFormatException e) {
+      return Long.MAX_VALUE;
+    }
+  }
+
+  /** Copies {@code count} bytes from {@code in} to {@code out}. */
+  private static void copy(GcsInputChannel in, WritableByteChannel out, long count)
+      throws IOException {
+    ByteBuffer buffer = buffers.get();
+    long remaining = count;
+    while (remaining > 0) {
+      buffer.clear();
+      if (remaining < buffer.capacity()) buffer.limit((int) remaining);
+      int read = in.read(buffer);
+      if (read == -1) break;
+      buffer.flip();
+      while (buffer.hasRemaining()) out.write(buffer);
+      remaining -= read;
+    }
   }
 }
@@ -0,0 +1,228 @@
+package present.media;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import okio.BufferedSource;
+
+/**
+ * Reads an image's type and dimensions from its header without decoding the image. Supports PNG,
+ * JPEG, GIF and WebP.
+ *
+ * @author Bob Lee (bob@present.co)
+ */
+final class ImageHeader {
+
+  /** MIME type. */
+  final String type;
+
+  /** Width in pixels. */
+  final int width;
+
+  /** Height in pixels. */
+  final int height;
+
+  ImageHeader(String type, int width, int height) {
+    this.type = type;
+    this.width = width;
+    this.height = height;
+  }
+
+  /**
+   * Reads the header at the start of the given bytes, typically the first few KB of a file.
+   * Returns null if the format isn't recognized or the header is incomplete.
+   */
+  static ImageHeader read(byte[] bytes) {
+    return read(bytes, bytes.length);
+  }
+
+  /** Reads the header from the first {@code length} bytes. */
+  static ImageHeader read(byte[] bytes, int length) {
+    return read(new ArrayBytes(bytes, length));
+  }
+
+  /**
+   * Reads the header at the start of the given source without consuming it. Buffers only as many
+   * bytes as the header needs, walking JPEG segments by their lengths, and gives up after
+   * {@code limit} bytes. Returns null if the format isn't recognized or the header is incomplete
+   * or extends past the limit.
+   */
+  static ImageHeader read(BufferedSource source, int limit) throws IOException {
+    try {
+      return read(new SourceBytes(source, limit));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  private static ImageHeader read(Bytes b) {
+    ImageHeader header;
+    try {
+      header = readUnchecked(b);
+    } catch (IndexOutOfBoundsException e) {
+      // Truncated header.
+      return null;
+    }
+    if (header == null || header.width <= 0 || header.height <= 0) return null;
+    return header;
+  }
+
+  private static ImageHeader readUnchecked(Bytes b) {
+    if (b.startsWith(0, PNG_SIGNATURE)) return readPng(b);
+    if (b.u8(0) == 0xFF && b.u8(1) == 0xD8) return readJpeg(b);
+    if (b.startsWith(0, "GIF87a") || b.startsWith(0, "GIF89a")) return readGif(b);
+    if (b.startsWith(0, "RIFF") && b.startsWith(8, "WEBP")) return readWebp(b);
+    return null;
+  }
+
+  private static final byte[] PNG_SIGNATURE
+      = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+
+  private static ImageHeader readPng(Bytes b) {
+    // The IHDR chunk must come first.
+    if (!b.startsWith(12, "IHDR")) return null;
+    return new ImageHeader(Media.Type.PNG, b.u32be(16), b.u32be(20));
+  }
+
+  private static ImageHeader readGif(Bytes b) {
+    // Logical screen descriptor
+    return new ImageHeader(Media.Type.GIF, b.u16le(6), b.u16le(8));
+  }
+
+  private static ImageHeader readJpeg(Bytes b) {
+    int offset = 2;
+    while (true) {
+      if (b.u8(offset) != 0xFF) return null;
+      // Skip fill bytes.
+      while (b.u8(offset) == 0xFF) offset++;
+      int marker = b.u8(offset++);
+      // Standalone markers have no length.
+      if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD8)) continue;
+      // Start of scan or end of image: we missed the frame header.
+      if (marker == 0xDA || marker == 0xD9) return null;
+      if (isStartOfFrame(marker)) {
+        // Length (2), precision (1), height (2), width (2)
+        return new ImageHeader(Media.Type.JPEG, b.u16be(offset + 5), b.u16be(offset + 3));
+      }
+      offset += b.u16be(offset);
+    }
+  }
+
+  /** SOF0-SOF15, excluding DHT, JPG and DAC. */
+  private static boolean isStartOfFrame(int marker) {
+    return marker >= 0xC0 && marker <= 0xCF
+        && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+  }
+
+  private static ImageHeader readWebp(Bytes b) {
+    if (b.startsWith(12, "VP8 ")) {
+      // Lossy: frame tag (3), start code (3), 14-bit width and height
+      if (b.u8(23) != 0x9D || b.u8(24) != 0x01 || b.u8(25) != 0x2A) return null;
+      return new ImageHeader(Media.Type.WEBP, b.u16le(26) & 0x3FFF, b.u16le(28) & 0x3FFF);
+    }
+    if (b.startsWith(12, "VP8L")) {
+      // Lossless: signature (1), 14-bit width - 1 and height - 1
+      if (b.u8(20) != 0x2F) return null;
+      int bits = b.u32le(21);
+      return new ImageHeader(Media.Type.WEBP, (bits & 0x3FFF) + 1, ((bits >> 14) & 0x3FFF) + 1);
+    }
+    if (b.startsWith(12, "VP8X")) {
+      // Extended: flags (4), 24-bit canvas width - 1 and height - 1
+      return new ImageHeader(Media.Type.WEBP, b.u24le(24) + 1, b.u24le(27) + 1);
+    }
+    return null;
+  }
+
+  @Override public String toString() {
+    return type + " " + width + "x" + height;
+  }
+
+  /** Bounds-checked reads. Throws IndexOutOfBoundsException past the end. */
+  private abstract static class Bytes {
+
+    /** Returns true if at least {@code length} bytes are available. */
+    abstract boolean has(int length);
+
+    /** Reads a byte that's known to be available. */
+    abstract byte get(int offset);
+
+    int u8(int offset) {
+      if (!has(offset + 1)) throw new IndexOutOfBoundsException();
+      return get(offset) & 0xFF;
+    }
+
+    int u16be(int offset) {
+      return u8(offset) << 8 | u8(offset + 1);
+    }
+
+    int u16le(int offset) {
+      return u8(offset) | u8(offset + 1) << 8;
+    }
+
+    int u24le(int offset) {
+      return u16le(offset) | u8(offset + 2) << 16;
+    }
+
+    int u32be(int offset) {
+      return u16be(offset) << 16 | u16be(offset + 2);
+    }
+
+    int u32le(int offset) {
+      return u16le(offset) | u16le(offset + 2) << 16;
+    }
+
+    boolean startsWith(int offset, byte[] prefix) {
+      if (!has(offset + prefix.length)) return false;
+      for (int i = 0; i < prefix.length; i++) {
+        if (get(offset + i) != prefix[i]) return false;
+      }
+      return true;
+    }
+
+    boolean startsWith(int offset, String prefix) {
+      return startsWith(offset, prefix.getBytes(StandardCharsets.US_ASCII));
+    }
+  }
+
+  private static class ArrayBytes extends Bytes {
+    private final byte[] bytes;
+    private final int length;
+
+    private ArrayBytes(byte[] bytes, int length) {
+      this.bytes = bytes;
+      this.length = length;
+    }
+
+    @Override boolean has(int length) {
+      return length <= this.length;
+    }
+
+    @Override byte get(int offset) {
+      return bytes[offset];
+    }
+  }
+
+  /** Reads from a source's buffer, requesting more bytes as needed. */
+  private static class SourceBytes extends Bytes {
+    private final BufferedSource source;
+    private final int limit;
+
+    private SourceBytes(BufferedSource source, int limit) {
+      this.source = source;
+      this.limit = limit;
+    }
+
+    @Override boolean has(int length) {
+      if (length > limit) return false;
+      try {
+        return source.request(length);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    @Override byte get(int offset) {
+      return source.buffer().getByte(offset);
+    }
+  }
+}
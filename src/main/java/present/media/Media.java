@@ -1,31 +1,69 @@
 package present.media;
 
+import com.google.appengine.api.ThreadManager;
 import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesService;
+import com.google.appengine.api.images.ImagesService.OutputEncoding;
 import com.google.appengine.api.images.ImagesServiceFactory;
 import com.google.appengine.api.images.ServingUrlOptions;
 import com.google.appengine.tools.cloudstorage.GcsFileOptions;
 import com.google.appengine.tools.cloudstorage.GcsFilename;
+import com.google.appengine.tools.cloudstorage.GcsInputChannel;
+import com.google.appengine.tools.cloudstorage.GcsOutputChannel;
 import com.google.appengine.tools.cloudstorage.GcsService;
 import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
 import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Result;
 import com.googlecode.objectify.annotation.Cache;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.OnSave;
+import com.googlecode.objectify.cache.PendingFutures;
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
 import okio.ByteString;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import present.engine.AppEngine;
 import present.engine.CurrentUser;
+import present.engine.Futures;
 import present.objectify.AbstractEntity;
 import present.rpc.ClientException;
+import present.rpc.RpcQueue;
 
 import static com.googlecode.objectify.ObjectifyService.ofy;
 
@@ -40,6 +78,8 @@ import static com.googlecode.objectify.ObjectifyService.ofy;
 
   static {
     ObjectifyService.register(Media.class);
+    ObjectifyService.register(MediaContent.class);
+    ObjectifyService.register(MediaSource.class);
   }
 
   /** A unique id for this content */
@@ -66,8 +106,16 @@ import static com.googlecode.objectify.ObjectifyService.ofy;
   /** Height in pixels. */
   public Integer height;
 
+  /** Hex-encoded SHA-256 digest of the content. */
+  public String sha256;
+
+  /** Resized versions of an image, smallest first. Null until generated. */
+  public List<Variant> variants;
+
   public MediaResponse toResponse() {
-    return new MediaResponse(uuid, type, url(), width, height);
+    List<MediaVariant> variants = this.variants == null ? Collections.emptyList()
+        : this.variants.stream().map(Variant::toResponse).collect(Collectors.toList());
+    return new MediaResponse(uuid, type, url(), width, height, variants);
   }
 
   /** Returns the public URL for the media. */
@@ -80,147 +128,689 @@ import static com.googlecode.objectify.ObjectifyService.ofy;
     return this;
   }
 
+  /**
+   * Loads the given Media entity or returns null if it doesn't exist. Results are cached per
+   * instance (see {@link MediaCache}), so callers shouldn't modify the returned entity without
+   * saving it.
+   */
   public static Media load(String uuid) {
-    return ofy().load().type(Media.class).id(uuid).now();
+    return MediaCache.get(uuid, id -> ofy().load().type(Media.class).id(id).now());
+  }
+
+  @OnSave private void invalidateCache() {
+    MediaCache.invalidate(uuid);
+  }
+
+  /**
+   * Saves the given entities asynchronously. {@link #invalidateCache} runs before the write, so a
+   * concurrent load can cache the old entity, or an absent result, until the write commits. We
+   * invalidate the saved Media again after the commit. Objectify completes both by the end of the
+   * request.
+   */
+  private static Result<?> saveAll(List<?> entities) {
+    Result<?> result = ofy().save().entities(entities);
+    List<String> uuids = entities.stream()
+        .filter(entity -> entity instanceof Media)
+        .map(entity -> ((Media) entity).uuid)
+        .collect(Collectors.toList());
+    PendingFutures.addPending(new FutureTask<Void>(() -> {
+      try {
+        result.now();
+      } finally {
+        uuids.forEach(MediaCache::invalidate);
+      }
+      return null;
+    }) {
+      @Override public Void get() throws InterruptedException, ExecutionException {
+        run(); // No-op after the first call.
+        return super.get();
+      }
+    });
+    return result;
+  }
+
+  private static volatile boolean deduplicate;
+
+  /**
+   * Enables content-addressed deduplication. When enabled, uploads whose content matches a
+   * previous upload reuse its GCS object and serving URL. Disabled by default.
+   */
+  public static void setDeduplicate(boolean enabled) {
+    deduplicate = enabled;
   }
 
   /**
    * Uploads media to GCS and creates a corresponding Media entity.
    */
   public static Media upload(String uuid, String type, ByteString bytes) throws IOException {
-    CopySupplier supplier = () -> new Copy(type, bytes.toByteArray(), null);
-    return upload(uuid, supplier);
+    return upload(uuid, supplierFor(type, bytes));
   }
 
-  private static OkHttpClient client = new OkHttpClient();
+  /**
+   * Uploads multiple media concurrently. Returns a future per request in the same order. Failed
+   * uploads don't affect the others.
+   *
+   * @throws ClientException if a UUID appears more than once or the batch has more than
+   *  {@value #MAX_BATCH_SIZE} requests
+   */
+  public static List<Future<Media>> uploadAll(List<UploadRequest> requests) {
+    List<String> uuids = new ArrayList<>(requests.size());
+    List<CopySupplier> suppliers = new ArrayList<>(requests.size());
+    for (UploadRequest request : requests) {
+      uuids.add(request.uuid);
+      suppliers.add(supplierFor(request.type, request.bytes));
+    }
+    return uploadAll(uuids, suppliers);
+  }
+
+  private static CopySupplier supplierFor(String type, ByteString bytes) {
+    return () -> new Copy(type, bytes);
+  }
+
+  private static final OkHttpClient client = new OkHttpClient.Builder()
+      .connectTimeout(10, TimeUnit.SECONDS)
+      .readTimeout(30, TimeUnit.SECONDS)
+      .writeTimeout(30, TimeUnit.SECONDS)
+      .build();
+
+  private static volatile long maxCopySize = 100 * 1024 * 1024;
+
+  /**
+   * Sets the maximum size of media copied from other URLs. Larger downloads are aborted, before
+   * they start if the source sends a Content-Length. Defaults to 100MB.
+   */
+  public static void setMaxCopySize(long bytes) {
+    maxCopySize = bytes;
+  }
+
+  private static volatile LoadingCache<String, Semaphore> hostPermits = hostPermits(4);
+
+  private static LoadingCache<String, Semaphore> hostPermits(int max) {
+    // Idle hosts expire long after any copy could still hold a permit.
+    return CacheBuilder.newBuilder()
+        .maximumSize(1000)
+        .expireAfterAccess(1, TimeUnit.HOURS)
+        .build(CacheLoader.from(host -> new Semaphore(max)));
+  }
+
+  /**
+   * Sets the maximum number of concurrent copies from one host per instance. Defaults to 4.
+   * Copies already in progress hold permits from the previous limit and don't count against the
+   * new one, so set this at startup.
+   */
+  public static void setMaxConcurrentCopiesPerHost(int max) {
+    Preconditions.checkArgument(max > 0);
+    hostPermits = hostPermits(max);
+  }
 
   /**
-   * Copies media from another URL.
+   * Copies media from another URL. Streams the response body to GCS in fixed-size chunks instead
+   * of buffering the whole file in memory.
    */
   public static Media copy(String uuid, String sourceUrl) throws IOException {
-    CopySupplier supplier = () -> {
-      Stopwatch stopwatch = Stopwatch.createStarted();
-      Request request = new Request.Builder().url(sourceUrl).build();
-      String type;
-      byte[] bytes;
-      try (Response response = client.newCall(request).execute()) {
+    return upload(uuid, supplierFor(sourceUrl));
+  }
+
+  /**
+   * Copies multiple media from other URLs concurrently. Returns a future per request in the same
+   * order. Failed copies don't affect the others.
+   *
+   * @throws ClientException if a UUID appears more than once or the batch has more than
+   *  {@value #MAX_BATCH_SIZE} requests
+   */
+  public static List<Future<Media>> copyAll(List<CopyRequest> requests) {
+    List<String> uuids = new ArrayList<>(requests.size());
+    List<CopySupplier> suppliers = new ArrayList<>(requests.size());
+    for (CopyRequest request : requests) {
+      uuids.add(request.uuid);
+      suppliers.add(supplierFor(request.url));
+    }
+    return uploadAll(uuids, suppliers);
+  }
+
+  private static CopySupplier supplierFor(String sourceUrl) {
+    return () -> {
+      // Reuse media we previously copied from this URL if it hasn't changed.
+      MediaSource index = MediaSource.load(sourceUrl);
+      Media previous = index == null ? null : load(index.mediaUuid);
+      if (previous != null && index.isFresh()) return new Copy(previous, sourceUrl, null);
+      if (previous == null || !index.canRevalidate()) index = null;
+
+      Request.Builder builder = new Request.Builder().url(sourceUrl);
+      if (index != null) index.addConditions(builder);
+      Request request = builder.build();
+      Semaphore permits = hostPermits.getUnchecked(request.url().host());
+      try {
+        if (!permits.tryAcquire(client.readTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+          throw new IOException("Too many concurrent copies from " + request.url().host());
+        }
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      Response response;
+      try {
+        response = client.newCall(request).execute();
+      } catch (IOException | RuntimeException e) {
+        permits.release();
+        throw e;
+      }
+      Closeable closeable = () -> {
+        try {
+          response.close();
+        } finally {
+          permits.release();
+        }
+      };
+      try {
+        if (response.code() == 304 && index != null) {
+          closeable.close();
+          index.update(response);
+          return new Copy(previous, sourceUrl, index);
+        }
         if (!response.isSuccessful()) {
           throw new IOException(response.code() + ": " + response.message());
         }
         ResponseBody body = response.body();
-        type = body.contentType().toString();
-        bytes = body.bytes();
+        long maxSize = maxCopySize;
+        if (body.contentLength() > maxSize) throw new ClientException("Media too large.");
+        String type = body.contentType().toString();
+        return new Copy(type, body.source(), sourceUrl, closeable, maxSize,
+            MediaSource.from(sourceUrl, response));
+      } catch (IOException | RuntimeException e) {
+        closeable.close();
+        throw e;
       }
-      logger.info("Downloaded {} in {}.", sourceUrl, stopwatch);
-
-      return new Copy(type, bytes, sourceUrl);
     };
+  }
+
+  static Media upload(String uuid, CopySupplier supplier) throws IOException {
+    String userId = CurrentUser.id();
+    if (userId == null) throw new ClientException("Unauthorized");
 
-    return upload(uuid, supplier);
+    // Only trust cached entities. A cached absent result could be stale, and we don't want to
+    // overwrite another user's media.
+    Media cached = MediaCache.getIfPresent(uuid);
+    if (cached != null) return checkOwner(cached, userId);
+
+    // Check if the file was already uploaded before we open, and possibly download, the source.
+    Stages stages = new Stages(uuid);
+    Media existing = stages.time("load", () -> ofy().load().type(Media.class).id(uuid).now());
+    if (existing != null) return checkOwner(existing, userId);
+
+    Copy copy = stages.time("open", supplier::get);
+    Stored stored = store(uuid, userId, copy, stages);
+    // Saves asynchronously. Objectify completes the save by the end of the request.
+    stages.time("save", () -> saveAll(stored.entities()));
+    stages.log();
+    enqueueVariants(stored.media);
+    return stored.media;
   }
 
-  private static Media upload(String uuid, CopySupplier supplier) throws IOException {
-    Media existing = load(uuid);
+  /** Maximum number of concurrent downloads and GCS writes per batch. */
+  private static final int MAX_CONCURRENT_UPLOADS = 8;
+
+  /** Maximum number of uploads per batch. Bounds the time and memory one request can use. */
+  static final int MAX_BATCH_SIZE = 50;
+
+  static List<Future<Media>> uploadAll(List<String> uuids, List<CopySupplier> suppliers) {
     String userId = CurrentUser.id();
     if (userId == null) throw new ClientException("Unauthorized");
+    if (uuids.isEmpty()) return Collections.emptyList();
+    if (uuids.size() > MAX_BATCH_SIZE) {
+      throw new ClientException("Too many media in batch. Max: " + MAX_BATCH_SIZE);
+    }
+    if (new HashSet<>(uuids).size() < uuids.size()) {
+      throw new ClientException("Duplicate UUIDs in batch.");
+    }
+
+    // Load existing entities in one batch.
+    Map<String, Media> existing = ofy().load().type(Media.class).ids(uuids);
 
-    // Check if the file was already uploaded.
-    if (existing != null) {
-      if (!existing.uploadedBy.equals(userId)) {
-        throw new ClientException("Unauthorized");
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.min(MAX_CONCURRENT_UPLOADS, uuids.size()),
+        ThreadManager.currentRequestThreadFactory());
+    try {
+      List<Future<Media>> results = new ArrayList<>(uuids.size());
+      Map<String, Future<Stored>> pending = new LinkedHashMap<>();
+      for (int i = 0; i < uuids.size(); i++) {
+        String uuid = uuids.get(i);
+        Media media = existing.get(uuid);
+        if (media != null) {
+          results.add(immediate(() -> checkOwner(media, userId)));
+          continue;
+        }
+        CopySupplier supplier = suppliers.get(i);
+        Future<Stored> stored = executor.submit(() -> {
+          try (Closeable closeable = ObjectifyService.begin()) {
+            Stages stages = new Stages(uuid);
+            Stored result = store(uuid, userId, stages.time("open", supplier::get), stages);
+            stages.log();
+            return result;
+          }
+        });
+        pending.put(uuid, stored);
+        results.add(Futures.map(stored, s -> s.media));
       }
-      return existing;
+
+      // Save new entities in one batch.
+      List<Media> created = new ArrayList<>();
+      List<Object> entities = new ArrayList<>();
+      pending.forEach((uuid, stored) -> {
+        try {
+          Stored result = stored.get();
+          created.add(result.media);
+          entities.addAll(result.entities());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+          logger.warn("Failed to upload {}.", uuid, e.getCause());
+        }
+      });
+      if (!entities.isEmpty()) saveAll(entities);
+      created.forEach(Media::enqueueVariants);
+      return results;
+    } finally {
+      executor.shutdown();
     }
+  }
 
-    Copy copy = supplier.get();
+  /** Returns a completed future holding the result of the given callable. */
+  private static <T> Future<T> immediate(Callable<T> callable) {
+    FutureTask<T> future = new FutureTask<>(callable);
+    future.run();
+    return future;
+  }
 
-    // Upload file to GCS.
-    Stopwatch stopwatch = Stopwatch.createStarted();
-    String path = "media/" + uuid + Type.extensionFor(copy.type);
-    GcsFilename gcsFile = new GcsFilename(AppEngine.applicationId(), path);
-    GcsService gcsService = GcsServiceFactory.createGcsService();
-    GcsFileOptions options = new GcsFileOptions.Builder()
-        .acl("public_read")
-        .mimeType(copy.type)
-        .build();
-    gcsService.createOrReplace(
-        gcsFile,
-        options,
-        ByteBuffer.wrap(copy.bytes));
-    logger.info("Uploaded {} in {}.", gcsFile, stopwatch);
-    stopwatch.reset();
-
-    // Create entity.
+  private static Media checkOwner(Media existing, String userId) {
+    if (!existing.uploadedBy.equals(userId)) {
+      throw new ClientException("Unauthorized");
+    }
+    return existing;
+  }
+
+  /** A new Media entity and the entities to save along with it. */
+  private static class Stored {
+    final Media media;
+    private final List<Object> entities = new ArrayList<>();
+
+    /** @param indexes index entries to save or nulls */
+    private Stored(Media media, Object... indexes) {
+      this.media = media;
+      entities.add(media);
+      for (Object index : indexes) {
+        if (index != null) entities.add(index);
+      }
+    }
+
+    List<Object> entities() {
+      return entities;
+    }
+  }
+
+  /**
+   * Writes the content to GCS and creates, but doesn't save, a Media entity. Closes the copy.
+   */
+  private static Stored store(String uuid, String userId, Copy copy, Stages stages)
+      throws IOException {
     Media media = new Media();
     media.uuid = uuid;
-    media.type = copy.type;
-    media.url = urlFor(gcsFile);
     media.uploadedBy = userId;
+    media.type = copy.type;
     media.sourceUrl = copy.url;
     media.width = copy.width;
     media.height = copy.height;
 
+    MediaContent content = null;
+    try {
+      if (copy.reused != null) {
+        logger.info("Reusing {} for {}.", copy.reused.uuid, uuid);
+        media.url = copy.reused.url;
+        media.imageUrl = copy.reused.imageUrl;
+        media.sha256 = copy.reused.sha256;
+        media.variants = copy.reused.variants;
+        return new Stored(media, copy.index);
+      }
+
+      // If the content is in memory or fits in one chunk, we already know its digest and can skip
+      // the GCS write.
+      boolean checked = deduplicate && copy.sha256() != null;
+      if (checked) content = stages.time("dedup", () -> MediaContent.load(copy.sha256()));
+
+      if (content == null) {
+        // Stream file to GCS.
+        String path = "media/" + uuid + Type.extensionFor(copy.type);
+        GcsFilename gcsFile = new GcsFilename(AppEngine.applicationId(), path);
+        GcsService gcsService = GcsServiceFactory.createGcsService();
+        GcsOutputChannel channel = gcsService.createOrReplace(gcsFile, optionsFor(copy.type));
+        long length = stages.time("write", () -> copy.writeTo(channel));
+        if (deduplicate && !checked) {
+          content = stages.time("dedup", () -> MediaContent.load(copy.sha256()));
+        }
+        if (content == null) {
+          // Only close (and commit) the file if the whole copy succeeded.
+          stages.time("commit", () -> {
+            channel.close();
+            return null;
+          });
+          logger.info("Uploaded {} ({} bytes).", gcsFile, length);
+          media.url = urlFor(gcsFile);
+        }
+        // Else, abandon the channel so GCS doesn't commit a duplicate.
+      }
+      media.sha256 = copy.sha256();
+    } finally {
+      copy.close();
+    }
+
+    MediaSource index = copy.index;
+    if (index != null) index.mediaUuid = uuid;
+
+    if (content != null) {
+      logger.info("Reusing {} for {}.", content.url, uuid);
+      media.url = content.url;
+      media.imageUrl = content.imageUrl;
+      return new Stored(media, index);
+    }
+
     // Serve images using Google Images Service.
-    if (!AppEngine.isDevelopment() && Type.isImage(copy.type)) {
-      stopwatch.start();
-      media.imageUrl = ImagesServiceFactory.getImagesService().getServingUrl(
-          ServingUrlOptions.Builder.withGoogleStorageFileName(
-              "/gs" + URI.create(media.url).getRawPath()).secureUrl(true));
-      logger.info("Got serving URL in {}.", stopwatch);
+    if (!AppEngine.isDevelopment() && Type.isImage(media.type)) {
+      media.imageUrl = stages.time("serve", () -> ImagesServiceFactory.getImagesService()
+          .getServingUrl(ServingUrlOptions.Builder.withGoogleStorageFileName(
+              "/gs" + URI.create(media.url).getRawPath()).secureUrl(true)));
     }
 
-    media.save();
+    return new Stored(media, index, deduplicate
+        ? new MediaContent(media.sha256, media.url, media.imageUrl) : null);
+  }
+
+  private static volatile int[] variantWidths = {};
+
+  /**
+   * Sets the widths of resized variants to generate for uploaded images. Variants are generated
+   * in the background via the task queue and only for widths smaller than the original. None by
+   * default.
+   */
+  public static void setVariantWidths(int... widths) {
+    int[] sorted = widths.clone();
+    Arrays.sort(sorted);
+    variantWidths = sorted;
+  }
+
+  private static final MediaTaskService tasks = RpcQueue.create(MediaTaskService.class);
+
+  private static void enqueueVariants(Media media) {
+    if (variantWidths.length == 0 || media.variants != null || !Variant.supports(media.type)) {
+      return;
+    }
+    try {
+      tasks.generateVariants(new VariantsRequest(media.uuid));
+    } catch (IOException e) {
+      // RpcQueue doesn't throw IOExceptions.
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Generates resized variants of an image and stores them next to the original in GCS. Invoked
+   * from the task queue after uploads.
+   */
+  public static Media generateVariants(String uuid) throws IOException {
+    // Bypass the cache. It may hold a stale or absent result.
+    Media media = ofy().load().type(Media.class).id(uuid).now();
+    // The upload may not have finished saving yet. Throw so the task queue retries.
+    if (media == null) throw new IllegalStateException("Media not found: " + uuid);
+    if (!Variant.supports(media.type) || media.width == null) return media;
+
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    GcsService gcsService = GcsServiceFactory.createGcsService();
+    byte[] original;
+    try (GcsInputChannel in = gcsService.openReadChannel(gcsFileFor(media.url), 0)) {
+      original = ByteStreams.toByteArray(Channels.newInputStream(in));
+    }
+    ImagesService images = ImagesServiceFactory.getImagesService();
+    List<Variant> variants = new ArrayList<>();
+    for (int width : variantWidths) {
+      if (width >= media.width) break;
+      int height = Math.max(1, Math.round((float) media.height * width / media.width));
+      // Transforms modify the image in place, so start from the original each time.
+      Image resized = images.applyTransform(ImagesServiceFactory.makeResize(width, height),
+          ImagesServiceFactory.makeImage(original), Variant.encodingFor(media.type));
+      String path = "media/" + uuid + "-" + width + "w" + Type.extensionFor(media.type);
+      GcsFilename file = new GcsFilename(AppEngine.applicationId(), path);
+      gcsService.createOrReplace(file, optionsFor(media.type),
+          ByteBuffer.wrap(resized.getImageData()));
+      variants.add(new Variant(urlFor(file), resized.getWidth(), resized.getHeight()));
+    }
+    logger.info("Generated {} variants of {} in {}.", variants.size(), uuid, stopwatch);
+
+    media.variants = variants;
+    saveAll(Collections.singletonList(media));
     return media;
   }
 
-  /** In-memory copy of the media. */
-  static class Copy {
+  /** A resized version of an image. Embedded in Media. */
+  public static class Variant {
+
+    /** Public GCS URL. */
+    public String url;
+
+    /** Width in pixels. */
+    public int width;
+
+    /** Height in pixels. */
+    public int height;
+
+    /** Used by Objectify. */
+    public Variant() {}
+
+    Variant(String url, int width, int height) {
+      this.url = url;
+      this.width = width;
+      this.height = height;
+    }
+
+    MediaVariant toResponse() {
+      return new MediaVariant(url, width, height);
+    }
+
+    /** The Images API can't write GIFs. Resizing would also drop animation. */
+    static boolean supports(String type) {
+      return Type.isImage(type) && !type.equals(Type.GIF);
+    }
+
+    static OutputEncoding encodingFor(String type) {
+      switch (type) {
+        case Type.JPEG: return OutputEncoding.JPEG;
+        case Type.WEBP: return OutputEncoding.WEBP;
+        default: return OutputEncoding.PNG;
+      }
+    }
+  }
+
+  /** Times the stages of an upload and logs them together. */
+  private static class Stages {
+    private final String uuid;
+    private final Stopwatch total = Stopwatch.createStarted();
+    private final StringBuilder timings = new StringBuilder();
+
+    private Stages(String uuid) {
+      this.uuid = uuid;
+    }
+
+    <T> T time(String name, Stage<T> stage) throws IOException {
+      Stopwatch stopwatch = Stopwatch.createStarted();
+      try {
+        return stage.run();
+      } finally {
+        if (timings.length() > 0) timings.append(", ");
+        timings.append(name).append(": ").append(stopwatch);
+      }
+    }
+
+    void log() {
+      logger.info("Stored {} in {} ({}).", uuid, total, timings);
+    }
+  }
+
+  /** A stage of an upload. */
+  private interface Stage<T> {
+    T run() throws IOException;
+  }
+
+  /**
+   * Streamed copy of the media. Buffers only the image header, from which it detects the type and
+   * dimensions, and one chunk at a time after that. Peak memory is bounded regardless of the file
+   * size.
+   */
+  static class Copy implements Closeable {
+
+    /** Size of the chunks we read from the source and write to GCS. */
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    /** Maximum number of bytes we buffer looking for an image header. */
+    static final int MAX_HEADER_SIZE = 1024 * 1024;
+
     final String type;
-    final byte[] bytes;
     final String url;
     final Integer width;
     final Integer height;
 
-    Copy(String type, byte[] bytes, String sourceUrl) {
-      this.bytes = bytes;
-      this.url = sourceUrl;
+    /** Previously copied media to reuse instead of writing content, or null. */
+    final Media reused;
+
+    /** Source URL index entry to save, or null. */
+    final MediaSource index;
+
+    private final BufferedSource source;
+    private final Closeable closeable;
+    private final long maxLength;
+    private String sha256;
+
+    Copy(String type, byte[] bytes, String sourceUrl) throws IOException {
+      this(type, new Buffer().write(bytes), sourceUrl, null);
+    }
 
-      // Determine image format, width, and height.
-      Image image = makeImage(bytes);
-      if (image == null) {
+    /** Copies in-memory content. We know its digest up front. */
+    Copy(String type, ByteString bytes) throws IOException {
+      this(type, new Buffer().write(bytes), null, null);
+      if (sha256 == null) sha256 = bytes.sha256().hex();
+    }
+
+    Copy(String type, BufferedSource source, String sourceUrl, Closeable closeable)
+        throws IOException {
+      this(type, source, sourceUrl, closeable, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * @param closeable optional resource (an HTTP response, for example) to close along with
+     *  this copy
+     * @param maxLength maximum content length in bytes
+     * @param index optional source URL index entry to save along with the media
+     */
+    Copy(String type, BufferedSource source, String sourceUrl, Closeable closeable,
+        long maxLength, MediaSource index) throws IOException {
+      this.source = source;
+      this.url = sourceUrl;
+      this.closeable = closeable;
+      this.maxLength = maxLength;
+      this.index = index;
+      this.reused = null;
+
+      // Determine image format, width, and height from the header. Reads past the first chunk
+      // only for JPEGs whose metadata segments push the frame header further.
+      ImageHeader header = ImageHeader.read(source, (int) Math.min(MAX_HEADER_SIZE, maxLength));
+      // If the content fits in one chunk, we can compute its digest up front.
+      if (!source.request(CHUNK_SIZE + 1)) sha256 = source.buffer().sha256().hex();
+      if (header == null) {
         this.type = type;
         this.width = null;
         this.height = null;
       } else {
         // Use the detected type. Don't trust the external type.
-        this.type = Type.typeFor(image.getFormat());
-        this.width = image.getWidth();
-        this.height = image.getHeight();
+        this.type = header.type;
+        this.width = header.width;
+        this.height = header.height;
       }
     }
-  }
 
-  static Image makeImage(byte[] bytes) {
-    try {
-      Image image = ImagesServiceFactory.makeImage(bytes);
-      String type = Type.typeFor(image.getFormat());
-      if (type == null) return null;
-      return image;
-    } catch (IllegalArgumentException e) {
-      return null;
+    /** Creates a copy that reuses previously copied media. */
+    Copy(Media reused, String sourceUrl, MediaSource index) {
+      this.type = reused.type;
+      this.url = sourceUrl;
+      this.width = reused.width;
+      this.height = reused.height;
+      this.reused = reused;
+      this.index = index;
+      this.sha256 = reused.sha256;
+      this.source = null;
+      this.closeable = null;
+      this.maxLength = 0;
+    }
+
+    /**
+     * Writes the content to the given channel in fixed-size chunks and computes its digest.
+     * Returns the length.
+     */
+    long writeTo(WritableByteChannel channel) throws IOException {
+      Hasher hasher = sha256 == null ? Hashing.sha256().newHasher() : null;
+      byte[] chunk = new byte[CHUNK_SIZE];
+      long length = 0;
+      for (int read; (read = source.read(chunk, 0, chunk.length)) != -1; ) {
+        length += read;
+        // Abort before we commit the file.
+        if (length > maxLength) throw new ClientException("Media too large.");
+        if (hasher != null) hasher.putBytes(chunk, 0, read);
+        ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, read);
+        while (buffer.hasRemaining()) channel.write(buffer);
+      }
+      if (hasher != null) sha256 = hasher.hash().toString();
+      return length;
+    }
+
+    /**
+     * Returns the hex-encoded SHA-256 digest of the content, or null if the content is streamed,
+     * larger than one chunk and hasn't been written yet.
+     */
+    String sha256() {
+      return sha256;
+    }
+
+    @Override public void close() throws IOException {
+      if (closeable != null) closeable.close();
     }
   }
 
-  /** Supplies in-memory copies. */
+  /** Supplies streamed copies. */
   interface CopySupplier {
     Copy get() throws IOException;
   }
 
+  private static final String DEVELOPMENT_URL = "http://localhost:8081/gcs/";
+  private static final String PRODUCTION_URL = "https://storage-download.googleapis.com/";
+
   /** Returns the public URL for the given GCS file name. */
   private static String urlFor(GcsFilename file) {
     String path = file.getObjectName();
-    if (AppEngine.isDevelopment()) return "http://localhost:8081/gcs/" + path;
-    return "https://storage-download.googleapis.com/" + file.getBucketName() + "/" + path;
+    if (AppEngine.isDevelopment()) return DEVELOPMENT_URL + path;
+    return PRODUCTION_URL + file.getBucketName() + "/" + path;
+  }
+
+  /** Returns the GCS file name for the given public URL. Inverse of urlFor(). */
+  private static GcsFilename gcsFileFor(String url) {
+    if (url.startsWith(DEVELOPMENT_URL)) {
+      return new GcsFilename(AppEngine.applicationId(), url.substring(DEVELOPMENT_URL.length()));
+    }
+    String path = url.substring(PRODUCTION_URL.length());
+    int slash = path.indexOf('/');
+    return new GcsFilename(path.substring(0, slash), path.substring(slash + 1));
+  }
+
+  private static GcsFileOptions optionsFor(String type) {
+    return new GcsFileOptions.Builder()
+        .acl("public_read")
+        .mimeType(type)
+        .build();
   }
 
   /** Explicitly registers Media entity with Objectify. */
@@ -247,16 +837,6 @@ import static com.googlecode.objectify.ObjectifyService.ofy;
       }
     }
 
-    private static String typeFor(Image.Format format) {
-      switch (format) {
-        case JPEG: return JPEG;
-        case PNG: return PNG;
-        case GIF: return GIF;
-        case WEBP: return WEBP;
-        default: return null;
-      }
-    }
-
     public static String extensionFor(String type) {
       switch (type) {
         case JPEG: return ".jpeg";
@@ -0,0 +1,146 @@
+package present.media;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Bounded per-instance cache in front of {@link Media#load}. Sits in front of Objectify's session
+ * cache and memcache. Also caches absent results, for a shorter window, so repeated lookups of
+ * unknown IDs don't go to the datastore. Entries are invalidated when this instance saves a Media
+ * entity, and again once the save commits; other instances see changes once their entries expire.
+ *
+ * @author Bob Lee (bob@present.co)
+ */
+public class MediaCache {
+
+  private MediaCache() {}
+
+  private static final long DEFAULT_MAXIMUM_SIZE = 10_000;
+  private static final Duration DEFAULT_TTL = Duration.ofMinutes(1);
+  private static final Duration DEFAULT_ABSENT_TTL = Duration.ofSeconds(5);
+
+  private static volatile Cache<String, Entry> cache
+      = newCache(DEFAULT_MAXIMUM_SIZE, DEFAULT_TTL);
+  private static volatile long absentTtlNanos = DEFAULT_ABSENT_TTL.toNanos();
+
+  private static final LongAdder hits = new LongAdder();
+  private static final LongAdder absentHits = new LongAdder();
+  private static final LongAdder misses = new LongAdder();
+
+  /**
+   * Replaces the cache with one that holds up to {@code maximumSize} entries. Caches found
+   * entities for {@code ttl} and absent entities for {@code absentTtl}. Defaults to 10,000
+   * entries, 1 minute and 5 seconds.
+   */
+  public static void configure(long maximumSize, Duration ttl, Duration absentTtl) {
+    cache = newCache(maximumSize, ttl);
+    absentTtlNanos = absentTtl.toNanos();
+  }
+
+  private static Cache<String, Entry> newCache(long maximumSize, Duration ttl) {
+    return CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterWrite(ttl.toNanos(), TimeUnit.NANOSECONDS)
+        .recordStats()
+        .build();
+  }
+
+  /** Returns the cached entity or loads it using the given function. */
+  static Media get(String uuid, Function<String, Media> loader) {
+    Cache<String, Entry> cache = MediaCache.cache;
+    Entry entry = cache.getIfPresent(uuid);
+    if (entry != null && !entry.isExpired()) {
+      (entry.media == null ? absentHits : hits).increment();
+      return entry.media;
+    }
+    misses.increment();
+    if (entry != null) cache.invalidate(uuid);
+    try {
+      // Coalesces concurrent loads of the same ID.
+      return cache.get(uuid, () -> new Entry(loader.apply(uuid))).media;
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /** Returns the cached entity or null if it isn't cached or is cached as absent. */
+  static Media getIfPresent(String uuid) {
+    Entry entry = cache.getIfPresent(uuid);
+    if (entry == null || entry.media == null) {
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    return entry.media;
+  }
+
+  /** Removes the given entity from the cache. */
+  static void invalidate(String uuid) {
+    cache.invalidate(uuid);
+  }
+
+  /** Empties the cache. */
+  public static void clear() {
+    cache.invalidateAll();
+  }
+
+  /** Returns a snapshot of the cache counters. */
+  public static Stats stats() {
+    Cache<String, Entry> cache = MediaCache.cache;
+    return new Stats(hits.sum(), absentHits.sum(), misses.sum(), cache.stats().evictionCount(),
+        cache.size());
+  }
+
+  /** Cache counters since the instance started. */
+  public static class Stats {
+
+    /** Lookups that found a cached entity. */
+    public final long hits;
+
+    /** Lookups that found a cached absent result. */
+    public final long absentHits;
+
+    /** Lookups that went to Objectify or, for uploads, found nothing usable. */
+    public final long misses;
+
+    /** Entries evicted for size or expiration by the current cache. */
+    public final long evictions;
+
+    /** Approximate number of entries. */
+    public final long size;
+
+    private Stats(long hits, long absentHits, long misses, long evictions, long size) {
+      this.hits = hits;
+      this.absentHits = absentHits;
+      this.misses = misses;
+      this.evictions = evictions;
+      this.size = size;
+    }
+
+    @Override public String toString() {
+      return "MediaCache.Stats{hits=" + hits + ", absentHits=" + absentHits
+          + ", misses=" + misses + ", evictions=" + evictions + ", size=" + size + "}";
+    }
+  }
+
+  /** A cached entity or absent result. */
+  private static class Entry {
+    final Media media;
+    final long expiresAt;
+
+    private Entry(Media media) {
+      this.media = media;
+      this.expiresAt = media == null ? System.nanoTime() + absentTtlNanos : 0;
+    }
+
+    /** Guava expires found entities. We expire absent results sooner. */
+    boolean isExpired() {
+      return media == null && System.nanoTime() - expiresAt > 0;
+    }
+  }
+}
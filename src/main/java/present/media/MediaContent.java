@@ -0,0 +1,42 @@
+package present.media;
+
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import present.objectify.AbstractEntity;
+
+import static com.googlecode.objectify.ObjectifyService.ofy;
+
+/**
+ * Maps a SHA-256 digest to the GCS object holding that content. Used to deduplicate uploads.
+ *
+ * @author Bob Lee (bob@present.co)
+ */
+@Entity @Cache public class MediaContent extends AbstractEntity<MediaContent> {
+
+  /** Hex-encoded SHA-256 digest of the content */
+  @Id public String sha256;
+
+  /** Public GCS URL. */
+  public String url;
+
+  /** Optional Google image serving URL. */
+  public String imageUrl;
+
+  /** Used by Objectify. */
+  public MediaContent() {}
+
+  MediaContent(String sha256, String url, String imageUrl) {
+    this.sha256 = sha256;
+    this.url = url;
+    this.imageUrl = imageUrl;
+  }
+
+  @Override protected MediaContent getThis() {
+    return this;
+  }
+
+  public static MediaContent load(String sha256) {
+    return ofy().load().type(MediaContent.class).id(sha256).now();
+  }
+}
@@ -1,6 +1,11 @@
 package present.media;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import present.rpc.ClientException;
 
 public class MediaServiceImpl implements MediaService {
 
@@ -11,4 +16,31 @@ public class MediaServiceImpl implements MediaService {
   @Override public MediaResponse copy(CopyRequest request) throws IOException {
     return Media.copy(request.uuid, request.url).toResponse();
   }
+
+  @Override public BatchMediaResponse batchUpload(BatchUploadRequest request) {
+    return toResponse(Media.uploadAll(request.requests));
+  }
+
+  @Override public BatchMediaResponse batchCopy(BatchCopyRequest request) {
+    return toResponse(Media.copyAll(request.requests));
+  }
+
+  private static BatchMediaResponse toResponse(List<Future<Media>> futures) {
+    return new BatchMediaResponse(futures.stream()
+        .map(MediaServiceImpl::toResult)
+        .collect(Collectors.toList()));
+  }
+
+  private static MediaResult toResult(Future<Media> future) {
+    try {
+      return new MediaResult(future.get().toResponse(), null);
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      // Don't leak server details to clients. Media logs the cause.
+      Throwable cause = e.getCause();
+      if (cause instanceof ClientException) return new MediaResult(null, cause.getMessage());
+      return new MediaResult(null, "Internal error");
+    }
+  }
 }
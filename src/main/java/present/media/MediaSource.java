@@ -0,0 +1,98 @@
+package present.media;
+
+import com.google.common.hash.Hashing;
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import java.nio.charset.StandardCharsets;
+import okhttp3.Request;
+import okhttp3.Response;
+import present.objectify.AbstractEntity;
+
+import static com.googlecode.objectify.ObjectifyService.ofy;
+
+/**
+ * Maps a source URL to the Media first copied from it, along with the HTTP validators needed to
+ * revalidate it. Lets repeated copies of an unchanged URL reuse the stored media.
+ *
+ * @author Bob Lee (bob@present.co)
+ */
+@Entity @Cache public class MediaSource extends AbstractEntity<MediaSource> {
+
+  /** Hex-encoded SHA-256 of the source URL. URLs can exceed the key length limit. */
+  @Id public String id;
+
+  /** The source URL. */
+  public String sourceUrl;
+
+  /** UUID of the Media copied from the URL. */
+  public String mediaUuid;
+
+  /** ETag header from the last response or null. */
+  public String etag;
+
+  /** Last-Modified header from the last response or null. */
+  public String lastModified;
+
+  /** Time at which we must revalidate the source, in ms. */
+  public long expiresTime;
+
+  /** Used by Objectify. */
+  public MediaSource() {}
+
+  @Override protected MediaSource getThis() {
+    return this;
+  }
+
+  public static MediaSource load(String sourceUrl) {
+    return ofy().load().type(MediaSource.class).id(idFor(sourceUrl)).now();
+  }
+
+  /**
+   * Creates an entry from a successful response. Returns null if the response can't be reused
+   * or revalidated.
+   */
+  static MediaSource from(String sourceUrl, Response response) {
+    if (response.cacheControl().noStore()) return null;
+    MediaSource source = new MediaSource();
+    source.id = idFor(sourceUrl);
+    source.sourceUrl = sourceUrl;
+    source.update(response);
+    if (source.etag == null && source.lastModified == null
+        && source.expiresTime <= System.currentTimeMillis()) {
+      return null;
+    }
+    return source;
+  }
+
+  /** Updates the validators and expiration from a 200 or 304 response. */
+  void update(Response response) {
+    String etag = response.header("ETag");
+    if (etag != null) this.etag = etag;
+    String lastModified = response.header("Last-Modified");
+    if (lastModified != null) this.lastModified = lastModified;
+    // Without max-age, revalidate every time.
+    int maxAge = response.cacheControl().maxAgeSeconds();
+    this.expiresTime = System.currentTimeMillis() + Math.max(0, maxAge) * 1000L;
+  }
+
+  /** Returns true if we can reuse the media without revalidating. */
+  boolean isFresh() {
+    return System.currentTimeMillis() < expiresTime;
+  }
+
+  /** Returns true if we can make a conditional request. */
+  boolean canRevalidate() {
+    return etag != null || lastModified != null;
+  }
+
+  /** Adds If-None-Match and If-Modified-Since headers. */
+  void addConditions(Request.Builder request) {
+    if (etag != null) request.header("If-None-Match", etag);
+    if (lastModified != null) request.header("If-Modified-Since", lastModified);
+  }
+
+  private static String idFor(String sourceUrl) {
+    return Hashing.sha256().hashString(sourceUrl, StandardCharsets.UTF_8).toString();
+  }
+}
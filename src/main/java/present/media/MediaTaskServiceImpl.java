@@ -0,0 +1,28 @@
+package present.media;
+
+import java.io.IOException;
+
+/**
+ * Runs tasks enqueued by {@link Media}. Clients must not be able to call these, so only let
+ * admins, which include the task queue, reach the service:
+ *
+ * <pre>
+ *   <security-constraint>
+ *     <web-resource-collection>
+ *       <web-resource-name>tasks</web-resource-name>
+ *       <url-pattern>/MediaTaskService/*</url-pattern>
+ *     </web-resource-collection>
+ *     <auth-constraint>
+ *       <role-name>admin</role-name>
+ *     </auth-constraint>
+ *   </security-constraint>
+ * </pre>
+ *
+ * @author Bob Lee (bob@present.co)
+ */
+public class MediaTaskServiceImpl implements MediaTaskService {
+
+  @Override public MediaResponse generateVariants(VariantsRequest request) throws IOException {
+    return Media.generateVariants(request.uuid).toResponse();
+  }
+}
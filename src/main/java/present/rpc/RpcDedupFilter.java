@@ -0,0 +1,127 @@
+package present.rpc;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Date;
+import java.util.concurrent.ExecutionException;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Skips tasks that already completed. {@link RpcQueue#dedup()} clients stamp each task with an
+ * invocation ID that stays the same across retries. After a task succeeds, this filter records
+ * its ID in memcache and the datastore. If the task queue runs the task again, because the
+ * response was lost for example, the filter returns 200 without running it. Doesn't prevent
+ * concurrent duplicate executions.
+ *
+ * Entries expire after a day by default. Expired entities are ignored but not deleted; configure
+ * a datastore TTL policy on the "expires" property of the "RpcInvocation" kind to delete them.
+ *
+ * To use, add this to web.xml before {@link RpcPayloadFilter}:
+ *
+ * <pre>
+ *   <filter>
+ *     <filter-name>rpcDedup</filter-name>
+ *     <filter-class>present.rpc.RpcDedupFilter</filter-class>
+ *   </filter>
+ *   <filter-mapping>
+ *     <filter-name>rpcDedup</filter-name>
+ *     <url-pattern>/*</url-pattern>
+ *   </filter-mapping>
+ * </pre>
+ *
+ * @author Bob Lee (bob@present.co)
+ */
+public class RpcDedupFilter implements Filter {
+
+  private static final Logger logger = LoggerFactory.getLogger(RpcDedupFilter.class);
+
+  /** Random ID that identifies a task across retries. */
+  static final String INVOCATION_ID_HEADER = "X-Rpc-Invocation-Id";
+
+  private static final String KIND = "RpcInvocation";
+  private static final String MEMCACHE_PREFIX = "rpc-done:";
+
+  private static volatile long ttlMillis = Duration.ofDays(1).toMillis();
+
+  /** Sets how long to remember completed invocations. Defaults to 1 day. */
+  public static void setTtl(Duration ttl) {
+    ttlMillis = ttl.toMillis();
+  }
+
+  @Override public void init(FilterConfig config) {}
+
+  @Override public void destroy() {}
+
+  @Override public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse,
+      FilterChain chain) throws IOException, ServletException {
+    HttpServletRequest request = (HttpServletRequest) servletRequest;
+    HttpServletResponse response = (HttpServletResponse) servletResponse;
+    String id = request.getHeader(INVOCATION_ID_HEADER);
+    // App Engine strips X-AppEngine-QueueName from external requests.
+    if (id == null || request.getHeader("X-AppEngine-QueueName") == null) {
+      chain.doFilter(request, response);
+      return;
+    }
+
+    MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+    if (isCompleted(memcache, id)) {
+      logger.info("Skipping duplicate invocation {} of {}.", id, request.getRequestURI());
+      return;
+    }
+
+    chain.doFilter(request, response);
+
+    if (response.getStatus() < 300) {
+      long expires = System.currentTimeMillis() + ttlMillis;
+      memcache.put(MEMCACHE_PREFIX + id, Boolean.TRUE, Expiration.onDate(new Date(expires)));
+      Entity entity = new Entity(keyFor(id));
+      entity.setUnindexedProperty("expires", new Date(expires));
+      // App Engine waits for the write before the request completes.
+      DatastoreServiceFactory.getAsyncDatastoreService().put(entity);
+    }
+  }
+
+  /** Checks memcache and falls back to the datastore. */
+  private static boolean isCompleted(MemcacheService memcache, String id) {
+    if (memcache.contains(MEMCACHE_PREFIX + id)) return true;
+    AsyncDatastoreService datastore = DatastoreServiceFactory.getAsyncDatastoreService();
+    Entity entity;
+    try {
+      entity = datastore.get(keyFor(id)).get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof EntityNotFoundException) return false;
+      // Better to run the task again than to fail it.
+      logger.warn("Failed to check invocation {}.", id, e.getCause());
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    Date expires = (Date) entity.getProperty("expires");
+    if (expires == null || expires.getTime() < System.currentTimeMillis()) return false;
+    memcache.put(MEMCACHE_PREFIX + id, Boolean.TRUE, Expiration.onDate(expires));
+    return true;
+  }
+
+  private static Key keyFor(String id) {
+    return KeyFactory.createKey(KIND, id);
+  }
+}
@@ -0,0 +1,122 @@
+package present.rpc;
+
+import com.squareup.wire.FieldEncoding;
+import com.squareup.wire.ProtoAdapter;
+import com.squareup.wire.ProtoReader;
+import com.squareup.wire.ProtoWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+
+/**
+ * Packs RPC invocations for one service into a single task payload. The payload is equivalent to:
+ *
+ * <pre>
+ *   message Envelope {
+ *     repeated Invocation invocations = 1;
+ *   }
+ *
+ *   message Invocation {
+ *     string method = 1;
+ *     bytes argument = 2; // Proto-encoded argument
+ *   }
+ * </pre>
+ *
+ * @author Bob Lee (bob@present.co)
+ */
+final class RpcEnvelope {
+
+  /** Envelope tasks are posted to this path plus the service name. */
+  static final String PATH = "/_envelope/";
+
+  private static final int INVOCATIONS = 1;
+  private static final int METHOD = 1;
+  private static final int ARGUMENT = 2;
+
+  private final Buffer buffer = new Buffer();
+  private final ProtoWriter writer = new ProtoWriter(buffer);
+  private int count;
+
+  /** Appends an invocation. */
+  void add(String method, byte[] argument) {
+    ByteString argumentBytes = ByteString.of(argument);
+    try {
+      writer.writeTag(INVOCATIONS, FieldEncoding.LENGTH_DELIMITED);
+      writer.writeVarint32(invocationSize(method, argumentBytes));
+      ProtoAdapter.STRING.encodeWithTag(writer, METHOD, method);
+      ProtoAdapter.BYTES.encodeWithTag(writer, ARGUMENT, argumentBytes);
+    } catch (IOException e) {
+      // Buffers don't throw.
+      throw new UncheckedIOException(e);
+    }
+    count++;
+  }
+
+  /** Returns the number of bytes {@link #add} appends. */
+  static int sizeOf(String method, byte[] argument) {
+    int size = invocationSize(method, ByteString.of(argument));
+    return ProtoAdapter.UINT32.encodedSizeWithTag(INVOCATIONS, size) + size;
+  }
+
+  private static int invocationSize(String method, ByteString argument) {
+    return ProtoAdapter.STRING.encodedSizeWithTag(METHOD, method)
+        + ProtoAdapter.BYTES.encodedSizeWithTag(ARGUMENT, argument);
+  }
+
+  /** Size of the encoded envelope in bytes. */
+  long size() {
+    return buffer.size();
+  }
+
+  /** Number of invocations. */
+  int count() {
+    return count;
+  }
+
+  /** Returns the encoded envelope. */
+  byte[] toByteArray() {
+    return buffer.snapshot().toByteArray();
+  }
+
+  /** Decodes the invocations in an envelope. */
+  static List<Invocation> decode(BufferedSource source) throws IOException {
+    List<Invocation> invocations = new ArrayList<>();
+    ProtoReader reader = new ProtoReader(source);
+    long envelope = reader.beginMessage();
+    for (int tag; (tag = reader.nextTag()) != -1; ) {
+      if (tag != INVOCATIONS) {
+        reader.skip();
+        continue;
+      }
+      String method = null;
+      ByteString argument = ByteString.EMPTY;
+      long invocation = reader.beginMessage();
+      for (int field; (field = reader.nextTag()) != -1; ) {
+        if (field == METHOD) method = reader.readString();
+        else if (field == ARGUMENT) argument = reader.readBytes();
+        else reader.skip();
+      }
+      reader.endMessage(invocation);
+      if (method == null) throw new IOException("Missing method name.");
+      invocations.add(new Invocation(method, argument));
+    }
+    reader.endMessage(envelope);
+    return invocations;
+  }
+
+  /** A decoded invocation. */
+  static class Invocation {
+
+    final String method;
+    final ByteString argument;
+
+    private Invocation(String method, ByteString argument) {
+      this.method = method;
+      this.argument = argument;
+    }
+  }
+}
@@ -0,0 +1,306 @@
+package present.rpc;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import javax.servlet.ReadListener;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import okio.Okio;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Unpacks envelope tasks enqueued by {@link RpcQueue#packed} clients and invokes the service
+ * methods in order. Includes each invocation as a request to "/Service/method", so invocations
+ * go through the same RPC servlet, interceptors and filters as individual tasks. Map it in
+ * web.xml:
+ *
+ * <pre>
+ *   <servlet>
+ *     <servlet-name>envelopes</servlet-name>
+ *     <servlet-class>present.rpc.RpcEnvelopeServlet</servlet-class>
+ *   </servlet>
+ *   <servlet-mapping>
+ *     <servlet-name>envelopes</servlet-name>
+ *     <url-pattern>/_envelope/*</url-pattern>
+ *   </servlet-mapping>
+ * </pre>
+ *
+ * Filters only run for included requests if their mappings specify
+ * {@code <dispatcher>INCLUDE</dispatcher>}, so add it to filters that set up the current user,
+ * for example.
+ *
+ * If an invocation fails, the servlet still runs the rest and then fails the task so the task
+ * queue retries the envelope. It remembers completed invocations in memcache and skips them on
+ * retries. Memcache can evict entries, so invocations must still be idempotent. Invocations that
+ * fail with a 4xx status, like those that throw {@link ClientException}, aren't retried.
+ *
+ * @author Bob Lee (bob@present.co)
+ */
+public class RpcEnvelopeServlet extends HttpServlet {
+
+  private static final Logger logger = LoggerFactory.getLogger(RpcEnvelopeServlet.class);
+
+  private static final String MEMCACHE_PREFIX = "rpc-envelope:";
+
+  /** Task headers that describe the envelope rather than its invocations. */
+  private static final Set<String> ENVELOPE_HEADERS = ImmutableSet.of(
+      RpcDedupFilter.INVOCATION_ID_HEADER.toLowerCase(),
+      RpcPayloadFilter.ENCODING_HEADER.toLowerCase(),
+      RpcPayloadFilter.LOCATION_HEADER.toLowerCase());
+
+  @Override protected void doPost(HttpServletRequest request, HttpServletResponse response)
+      throws IOException, ServletException {
+    // App Engine strips this header from external requests.
+    if (request.getHeader("X-AppEngine-QueueName") == null) {
+      response.sendError(403);
+      return;
+    }
+    String path = request.getPathInfo();
+    if (path == null || path.length() < 2 || path.indexOf('/', 1) != -1) {
+      logger.error("Invalid service: {}", path);
+      response.sendError(404);
+      return;
+    }
+    String service = path.substring(1);
+    List<RpcEnvelope.Invocation> invocations
+        = RpcEnvelope.decode(Okio.buffer(Okio.source(request.getInputStream())));
+
+    // Task names are unique and stay the same across retries.
+    String taskName = request.getHeader("X-AppEngine-TaskName");
+    String key = taskName == null ? null : MEMCACHE_PREFIX + taskName;
+    MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+    BitSet completed = key == null ? null : (BitSet) memcache.get(key);
+    if (completed == null) completed = new BitSet();
+
+    int skipped = completed.cardinality();
+    int failures = 0;
+    for (int i = 0; i < invocations.size(); i++) {
+      if (completed.get(i)) continue;
+      RpcEnvelope.Invocation invocation = invocations.get(i);
+      int status;
+      try {
+        status = include(request, response, service, invocation);
+      } catch (IOException | ServletException | RuntimeException e) {
+        logger.error("{}.{}() failed.", service, invocation.method, e);
+        failures++;
+        continue;
+      }
+      if (status >= 500) {
+        logger.error("{}.{}() failed with status {}.", service, invocation.method, status);
+        failures++;
+        continue;
+      }
+      if (status >= 300) {
+        logger.warn("Dropping {}.{}(): {}", service, invocation.method, status);
+      }
+      completed.set(i);
+    }
+    logger.info("Invoked {} methods. Skipped {} completed methods.",
+        invocations.size() - skipped, skipped);
+    if (failures > 0) {
+      if (key != null) memcache.put(key, completed, Expiration.byDeltaSeconds(24 * 60 * 60));
+      response.sendError(500, failures + " of " + invocations.size() + " invocations failed.");
+    } else if (skipped > 0) {
+      memcache.delete(key);
+    }
+  }
+
+  /** Includes an invocation and returns its status. */
+  private int include(HttpServletRequest request, HttpServletResponse response, String service,
+      RpcEnvelope.Invocation invocation) throws IOException, ServletException {
+    String path = "/" + service + "/" + invocation.method;
+    RequestDispatcher dispatcher = getServletContext().getRequestDispatcher(path);
+    if (dispatcher == null) return 404;
+    InvocationResponse invocationResponse = new InvocationResponse(response);
+    dispatcher.include(
+        new InvocationRequest(request, path, invocation.argument.toByteArray()),
+        invocationResponse);
+    return invocationResponse.status;
+  }
+
+  /** Presents an invocation as a request to "/Service/method". */
+  private static class InvocationRequest extends HttpServletRequestWrapper {
+
+    private final String path;
+    private final byte[] argument;
+
+    private InvocationRequest(HttpServletRequest request, String path, byte[] argument) {
+      super(request);
+      this.path = path;
+      this.argument = argument;
+    }
+
+    @Override public String getRequestURI() {
+      return getContextPath() + path;
+    }
+
+    @Override public StringBuffer getRequestURL() {
+      StringBuffer url = new StringBuffer();
+      url.append(getScheme()).append("://").append(getServerName()).append(':')
+          .append(getServerPort()).append(getRequestURI());
+      return url;
+    }
+
+    @Override public String getServletPath() {
+      return "";
+    }
+
+    @Override public String getPathInfo() {
+      return path;
+    }
+
+    @Override public String getContentType() {
+      return RpcEncoding.PROTO.contentType;
+    }
+
+    @Override public int getContentLength() {
+      return argument.length;
+    }
+
+    @Override public long getContentLengthLong() {
+      return argument.length;
+    }
+
+    @Override public String getHeader(String name) {
+      switch (name.toLowerCase()) {
+        case "content-type": return getContentType();
+        case "content-length": return String.valueOf(argument.length);
+        default: return ENVELOPE_HEADERS.contains(name.toLowerCase())
+            ? null : super.getHeader(name);
+      }
+    }
+
+    @Override public Enumeration<String> getHeaders(String name) {
+      String value = getHeader(name);
+      return value == null ? Collections.emptyEnumeration()
+          : Collections.enumeration(Collections.singleton(value));
+    }
+
+    @Override public ServletInputStream getInputStream() {
+      ByteArrayInputStream in = new ByteArrayInputStream(argument);
+      return new ServletInputStream() {
+        @Override public int read() {
+          return in.read();
+        }
+
+        @Override public int read(byte[] b, int off, int len) {
+          return in.read(b, off, len);
+        }
+
+        @Override public boolean isFinished() {
+          return in.available() == 0;
+        }
+
+        @Override public boolean isReady() {
+          return true;
+        }
+
+        @Override public void setReadListener(ReadListener listener) {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+  }
+
+  /** Records the status of an invocation and discards its output. */
+  private static class InvocationResponse extends HttpServletResponseWrapper {
+
+    private int status = 200;
+
+    private InvocationResponse(HttpServletResponse response) {
+      super(response);
+    }
+
+    @Override public void setStatus(int status) {
+      this.status = status;
+    }
+
+    @Override public int getStatus() {
+      return status;
+    }
+
+    @Override public void sendError(int status) {
+      this.status = status;
+    }
+
+    @Override public void sendError(int status, String message) {
+      this.status = status;
+    }
+
+    @Override public void sendRedirect(String location) {
+      this.status = 302;
+    }
+
+    @Override public void setHeader(String name, String value) {}
+
+    @Override public void addHeader(String name, String value) {}
+
+    @Override public void setIntHeader(String name, int value) {}
+
+    @Override public void addIntHeader(String name, int value) {}
+
+    @Override public void setDateHeader(String name, long date) {}
+
+    @Override public void addDateHeader(String name, long date) {}
+
+    @Override public void setContentType(String type) {}
+
+    @Override public void setContentLength(int length) {}
+
+    @Override public void setContentLengthLong(long length) {}
+
+    @Override public void setCharacterEncoding(String charset) {}
+
+    @Override public boolean isCommitted() {
+      return false;
+    }
+
+    @Override public void flushBuffer() {}
+
+    @Override public void reset() {
+      status = 200;
+    }
+
+    @Override public void resetBuffer() {}
+
+    @Override public ServletOutputStream getOutputStream() {
+      return new ServletOutputStream() {
+        @Override public void write(int b) {}
+
+        @Override public void write(byte[] b, int off, int len) {}
+
+        @Override public boolean isReady() {
+          return true;
+        }
+
+        @Override public void setWriteListener(WriteListener listener) {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    @Override public PrintWriter getWriter() {
+      return new PrintWriter(ByteStreams.nullOutputStream());
+    }
+  }
+}
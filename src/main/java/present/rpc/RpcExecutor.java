@@ -0,0 +1,212 @@
+package present.rpc;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs {@link RpcQueue} invocations directly against registered service implementations on a
+ * thread pool instead of going through the task queue. For development and tests:
+ *
+ * <pre>
+ *   RpcExecutor executor = new RpcExecutor(4)
+ *       .service(MediaService.class, new MediaServiceImpl());
+ *   RpcQueue.setExecutor(executor);
+ *   ...
+ *   executor.drain();
+ * </pre>
+ *
+ * Honors task delays, debouncing and {@link RpcQueue#noRetries()}. Retries failed invocations
+ * with exponential backoff. Runs each invocation in the App Engine environment of the request
+ * that enqueued it, with a new Objectify context.
+ *
+ * @author Bob Lee (bob@present.co)
+ */
+public class RpcExecutor {
+
+  private static final Logger logger = LoggerFactory.getLogger(RpcExecutor.class);
+
+  private final ScheduledExecutorService executor;
+  private final Map<Class<?>, Object> services = new ConcurrentHashMap<>();
+  /** Task names of debounced invocations to the time their windows end. */
+  private final Map<String, Long> names = new HashMap<>();
+  private final List<Throwable> failures = new ArrayList<>();
+  private int pending;
+
+  private volatile int retryLimit = 3;
+  private volatile long minBackoffMillis = 100;
+
+  /** Creates an executor with the given number of threads. */
+  public RpcExecutor(int threads) {
+    this.executor = Executors.newScheduledThreadPool(threads, new ThreadFactoryBuilder()
+        .setNameFormat("RpcExecutor-%d")
+        .setDaemon(true)
+        .build());
+  }
+
+  /** Runs invocations of the given service against the implementation. */
+  public <T> RpcExecutor service(Class<T> service, T implementation) {
+    services.put(service, implementation);
+    return this;
+  }
+
+  /**
+   * Retries failed invocations up to {@code limit} times, waiting {@code minBackoff} before the
+   * first retry and doubling it after each. Defaults to 3 retries and 100ms. Invocations that
+   * throw {@link ClientException} aren't retried.
+   */
+  public RpcExecutor retries(int limit, Duration minBackoff) {
+    Preconditions.checkArgument(limit >= 0);
+    this.retryLimit = limit;
+    this.minBackoffMillis = minBackoff.toMillis();
+    return this;
+  }
+
+  /**
+   * Waits for all pending invocations, including delayed ones and retries, to complete.
+   *
+   * @throws RuntimeException if invocations failed after exhausting their retries since the
+   *  last drain. Suppresses additional failures.
+   */
+  public void drain() throws InterruptedException {
+    List<Throwable> failures;
+    synchronized (this) {
+      while (pending > 0) wait();
+      failures = new ArrayList<>(this.failures);
+      this.failures.clear();
+    }
+    if (failures.isEmpty()) return;
+    RuntimeException e = new RuntimeException(failures.size() + " invocation(s) failed.",
+        failures.get(0));
+    failures.stream().skip(1).forEach(e::addSuppressed);
+    throw e;
+  }
+
+  /** Stops the threads. Drops pending invocations and rejects new ones. */
+  public void shutdown() {
+    List<Runnable> dropped = executor.shutdownNow();
+    synchronized (this) {
+      pending -= dropped.size();
+      notifyAll();
+    }
+  }
+
+  /** Schedules an invocation. */
+  void submit(Invocation invocation) {
+    Preconditions.checkState(services.containsKey(invocation.service),
+        "No implementation registered for %s.", invocation.service.getName());
+    if (invocation.name != null && !reserve(invocation)) {
+      logger.debug("Debounced {}.", invocation.name);
+      return;
+    }
+    synchronized (this) {
+      pending++;
+    }
+    try {
+      executor.schedule(() -> run(invocation, 0), invocation.delayMillis, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      completed(null);
+      throw e;
+    }
+  }
+
+  /**
+   * Reserves the invocation's name until the end of its delay, like the task queue rejects
+   * duplicate names. Returns false if the name is already reserved.
+   */
+  private boolean reserve(Invocation invocation) {
+    long now = System.currentTimeMillis();
+    synchronized (names) {
+      names.values().removeIf(end -> end <= now);
+      return names.putIfAbsent(invocation.name, now + invocation.delayMillis) == null;
+    }
+  }
+
+  private void run(Invocation invocation, int attempt) {
+    Object implementation = services.get(invocation.service);
+    ApiProxy.Environment previous = ApiProxy.getCurrentEnvironment();
+    if (invocation.environment != null) {
+      ApiProxy.setEnvironmentForCurrentThread(invocation.environment);
+    }
+    Throwable failure = null;
+    try (Closeable ignored = ObjectifyService.begin()) {
+      invocation.method.invoke(implementation, invocation.argument);
+    } catch (InvocationTargetException e) {
+      failure = e.getCause();
+    } catch (Throwable t) {
+      failure = t;
+    } finally {
+      if (previous != null) {
+        ApiProxy.setEnvironmentForCurrentThread(previous);
+      } else {
+        ApiProxy.clearEnvironmentForCurrentThread();
+      }
+    }
+
+    String name = invocation.service.getSimpleName() + "." + invocation.method.getName() + "()";
+    if (failure != null) {
+      int limit = invocation.retryLimit != null ? invocation.retryLimit : retryLimit;
+      if (!(failure instanceof ClientException) && attempt < limit) {
+        long backoff = minBackoffMillis << attempt;
+        logger.warn("{} failed. Retrying in {}ms.", name, backoff, failure);
+        try {
+          executor.schedule(() -> run(invocation, attempt + 1), backoff, TimeUnit.MILLISECONDS);
+          return;
+        } catch (RejectedExecutionException e) {
+          // Shut down
+        }
+      }
+      logger.error("{} failed.", name, failure);
+    }
+    completed(failure);
+  }
+
+  /** Records that an invocation completed, failed or was dropped. */
+  private synchronized void completed(Throwable failure) {
+    if (failure != null) failures.add(failure);
+    pending--;
+    notifyAll();
+  }
+
+  /** An RPC to run in-process. */
+  static class Invocation {
+
+    final Class<?> service;
+    final Method method;
+    final Object argument;
+    final long delayMillis;
+    final String name;
+    final Integer retryLimit;
+    final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+
+    /**
+     * @param name optional task name used to drop duplicates
+     * @param retryLimit optional retry limit, overrides the executor's default
+     */
+    Invocation(Class<?> service, Method method, Object argument, long delayMillis, String name,
+        Integer retryLimit) {
+      this.service = service;
+      this.method = method;
+      this.argument = argument;
+      this.delayMillis = delayMillis;
+      this.name = name;
+      this.retryLimit = retryLimit;
+    }
+  }
+}
@@ -0,0 +1,183 @@
+package present.rpc;
+
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.base.Preconditions;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token bucket that limits how fast this instance enqueues {@link RpcQueue} tasks into a queue.
+ * Install with {@link RpcQueue#limit}:
+ *
+ * <pre>
+ *   RpcLimiter limiter = new RpcLimiter(100, 500, RpcLimiter.Mode.SPREAD);
+ *   RpcQueue.limit("default", limiter);
+ * </pre>
+ *
+ * @author Bob Lee (bob@present.co)
+ */
+public class RpcLimiter {
+
+  /** What to do when tasks exceed the budget. */
+  public enum Mode {
+
+    /**
+     * Waits until the budget allows the tasks. Blocks the enqueueing request. If waiting would
+     * run past the request's deadline, enqueues the tasks right away and delays them instead,
+     * like {@link #SPREAD}.
+     */
+    BLOCK,
+
+    /** Enqueues the tasks right away but delays them until the budget allows them to run. */
+    SPREAD,
+
+    /**
+     * Throws {@link RejectedExecutionException} without enqueueing anything. In a batch, tokens
+     * already taken for other queues aren't returned. Tasks are admitted all at once, per queue
+     * for {@link RpcQueue#batch} and per chunk of up to 100 tasks for streaming and staged
+     * batches, so anything larger than the burst always fails. {@link RpcQueue#limit} requires a
+     * burst of at least 100 in this mode.
+     */
+    FAIL
+  }
+
+  private final double tokensPerMilli;
+  private final double capacity;
+  private final Mode mode;
+
+  private double tokens;
+  private long lastRefill = System.currentTimeMillis();
+
+  private final LongAdder admitted = new LongAdder();
+  private final LongAdder deferred = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+
+  /**
+   * @param tasksPerSecond sustained rate
+   * @param burst number of tasks that can be enqueued at once after a quiet period
+   */
+  public RpcLimiter(double tasksPerSecond, int burst, Mode mode) {
+    Preconditions.checkArgument(tasksPerSecond > 0);
+    Preconditions.checkArgument(burst > 0);
+    this.tokensPerMilli = tasksPerSecond / 1000;
+    this.capacity = burst;
+    this.tokens = burst;
+    this.mode = mode;
+  }
+
+  Mode mode() {
+    return mode;
+  }
+
+  /** Maximum number of tasks admitted at once. */
+  int burst() {
+    return (int) capacity;
+  }
+
+  /** Number of tasks enqueued without delay. */
+  public long admitted() {
+    return admitted.sum();
+  }
+
+  /** Number of tasks blocked or delayed because they exceeded the budget. */
+  public long deferred() {
+    return deferred.sum();
+  }
+
+  /** Number of tasks rejected in {@link Mode#FAIL} mode. */
+  public long rejected() {
+    return rejected.sum();
+  }
+
+  /**
+   * Takes tokens for the given tasks. Blocks, delays the tasks or throws depending on the mode.
+   *
+   * @throws RejectedExecutionException if the tasks exceed the budget in FAIL mode
+   */
+  void admit(List<TaskOptions> tasks) {
+    int count = tasks.size();
+    switch (mode) {
+      case FAIL:
+        if (!tryAcquire(count)) {
+          rejected.add(count);
+          throw new RejectedExecutionException("Enqueueing " + count
+              + " tasks would exceed the rate limit.");
+        }
+        admitted.add(count);
+        return;
+      case BLOCK:
+        long wait = reserve(count);
+        if (wait == 0) {
+          admitted.add(count);
+          return;
+        }
+        deferred.add(count);
+        if (wait > remainingMillis()) {
+          long start = System.currentTimeMillis();
+          for (TaskOptions task : tasks) delay(task, start, wait);
+          return;
+        }
+        try {
+          TimeUnit.MILLISECONDS.sleep(wait);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new RuntimeException(e);
+        }
+        return;
+      case SPREAD:
+        long now = System.currentTimeMillis();
+        for (TaskOptions task : tasks) {
+          long delay = reserve(1);
+          if (delay == 0) {
+            admitted.increment();
+            continue;
+          }
+          deferred.increment();
+          delay(task, now, delay);
+        }
+        return;
+      default:
+        throw new AssertionError();
+    }
+  }
+
+  /** Delays a task by at least the given time. */
+  private static void delay(TaskOptions task, long now, long delay) {
+    // Preserve longer delays.
+    task.etaMillis(Math.max(now + delay, RpcQueue.etaMillis(task, now)));
+  }
+
+  /** Leaves time to enqueue the tasks and finish the request after blocking. */
+  private static final long DEADLINE_MARGIN_MILLIS = 1000;
+
+  /** Returns how long the current request can block. */
+  private static long remainingMillis() {
+    ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    // Background threads have no deadline.
+    if (environment == null) return Long.MAX_VALUE;
+    return environment.getRemainingMillis() - DEADLINE_MARGIN_MILLIS;
+  }
+
+  private synchronized boolean tryAcquire(int count) {
+    refill();
+    if (tokens < count) return false;
+    tokens -= count;
+    return true;
+  }
+
+  /** Takes tokens, going into debt if necessary. Returns ms until the debt is repaid. */
+  private synchronized long reserve(int count) {
+    refill();
+    tokens -= count;
+    return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerMilli);
+  }
+
+  private void refill() {
+    long now = System.currentTimeMillis();
+    tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerMilli);
+    lastRefill = now;
+  }
+}
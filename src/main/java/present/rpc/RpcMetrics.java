@@ -0,0 +1,26 @@
+package present.rpc;
+
+/**
+ * Receives {@link RpcQueue} enqueue metrics. Tagged by queue, service simple name and method.
+ * Envelope tasks use the method name "_envelope". Implementations must be thread safe and fast.
+ * Install with {@link RpcQueue#setMetrics}. Defaults to {@link RpcMetricsRegistry#global()}.
+ *
+ * @author Bob Lee (bob@present.co)
+ */
+public interface RpcMetrics {
+
+  /** Records tasks handed to the task queue in one call. */
+  void enqueued(String queueName, String serviceName, String methodName, int tasks,
+      long payloadBytes);
+
+  /**
+   * Records how long an enqueue call took and whether it failed. Calls for tasks of several RPCs
+   * are recorded once per RPC. Not recorded for {@link RpcQueue#batchAsync} results that nobody
+   * waits on.
+   */
+  void completed(String queueName, String serviceName, String methodName, long latencyNanos,
+      boolean failed);
+
+  /** Records the number of tasks in a batch. */
+  void batched(int tasks);
+}
@@ -0,0 +1,203 @@
+package present.rpc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accumulates {@link RpcMetrics} in memory since the instance started. Scrape with
+ * {@link #stats()} or {@link #toString()}, which renders the Prometheus text format.
+ *
+ * @author Bob Lee (bob@present.co)
+ */
+public class RpcMetricsRegistry implements RpcMetrics {
+
+  /** Upper bounds of the enqueue latency buckets in ms. */
+  private static final long[] LATENCY_BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 5000 };
+
+  /** Upper bounds of the batch size buckets. */
+  private static final long[] BATCH_BOUNDS = { 1, 10, 100, 1000, 10000 };
+
+  private static final RpcMetricsRegistry global = new RpcMetricsRegistry();
+
+  private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+  private final Histogram batches = new Histogram(BATCH_BOUNDS);
+
+  /** Returns the registry RpcQueue uses by default. */
+  public static RpcMetricsRegistry global() {
+    return global;
+  }
+
+  @Override public void enqueued(String queueName, String serviceName, String methodName,
+      int tasks, long payloadBytes) {
+    Stats stats = statsFor(queueName, serviceName, methodName);
+    stats.tasks.add(tasks);
+    stats.payloadBytes.add(payloadBytes);
+  }
+
+  @Override public void completed(String queueName, String serviceName, String methodName,
+      long latencyNanos, boolean failed) {
+    Stats stats = statsFor(queueName, serviceName, methodName);
+    stats.latency.record(TimeUnit.NANOSECONDS.toMillis(latencyNanos));
+    if (failed) stats.failures.increment();
+  }
+
+  @Override public void batched(int tasks) {
+    batches.record(tasks);
+  }
+
+  private Stats statsFor(String queueName, String serviceName, String methodName) {
+    return stats.computeIfAbsent(queueName + '/' + serviceName + '/' + methodName,
+        key -> new Stats(queueName, serviceName, methodName));
+  }
+
+  /** Returns stats per RPC, most tasks first. */
+  public List<Stats> stats() {
+    List<Stats> list = new ArrayList<>(stats.values());
+    list.sort(Comparator.comparingLong((Stats s) -> s.tasks.sum()).reversed());
+    return list;
+  }
+
+  /** Returns the number of batches by size. Last bucket is unbounded. */
+  public long[] batchSizes() {
+    return batches.counts();
+  }
+
+  /** Clears all stats. */
+  public void clear() {
+    stats.clear();
+    batches.clear();
+  }
+
+  /** Renders the stats in the Prometheus text format. */
+  @Override public String toString() {
+    List<Stats> stats = stats();
+    StringBuilder out = new StringBuilder();
+    // Each metric family's samples must follow its TYPE line together.
+    appendType(out, "rpc_queue_tasks_total", "counter");
+    for (Stats s : stats) appendSample(out, "rpc_queue_tasks_total", s, s.tasks());
+    appendType(out, "rpc_queue_payload_bytes_total", "counter");
+    for (Stats s : stats) appendSample(out, "rpc_queue_payload_bytes_total", s, s.payloadBytes());
+    appendType(out, "rpc_queue_failures_total", "counter");
+    for (Stats s : stats) appendSample(out, "rpc_queue_failures_total", s, s.failures());
+    appendType(out, "rpc_queue_enqueue_latency_ms", "histogram");
+    for (Stats s : stats) {
+      appendHistogram(out, "rpc_queue_enqueue_latency_ms", labels(s) + ",", s.latency);
+    }
+    appendType(out, "rpc_queue_batch_tasks", "histogram");
+    appendHistogram(out, "rpc_queue_batch_tasks", "", batches);
+    return out.toString();
+  }
+
+  private static void appendType(StringBuilder out, String name, String type) {
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void appendSample(StringBuilder out, String name, Stats stats, long value) {
+    out.append(name).append('{').append(labels(stats)).append("} ").append(value).append('\n');
+  }
+
+  private static String labels(Stats s) {
+    return "queue=\"" + s.queueName + "\",service=\"" + s.serviceName
+        + "\",method=\"" + s.methodName + "\"";
+  }
+
+  private static void appendHistogram(StringBuilder out, String name, String labels,
+      Histogram histogram) {
+    long[] counts = histogram.counts();
+    long cumulative = 0;
+    for (int i = 0; i < counts.length; i++) {
+      cumulative += counts[i];
+      String bound = i < histogram.bounds.length ? String.valueOf(histogram.bounds[i]) : "+Inf";
+      out.append(name).append("_bucket{").append(labels).append("le=\"").append(bound)
+          .append("\"} ").append(cumulative).append('\n');
+    }
+    out.append(name).append("_sum{").append(trim(labels)).append("} ")
+        .append(histogram.sum.sum()).append('\n');
+    out.append(name).append("_count{").append(trim(labels)).append("} ").append(cumulative)
+        .append('\n');
+  }
+
+  private static String trim(String labels) {
+    return labels.endsWith(",") ? labels.substring(0, labels.length() - 1) : labels;
+  }
+
+  /** Enqueue stats for one RPC. */
+  public static class Stats {
+
+    public final String queueName;
+    public final String serviceName;
+    public final String methodName;
+
+    private final LongAdder tasks = new LongAdder();
+    private final LongAdder payloadBytes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final Histogram latency = new Histogram(LATENCY_BOUNDS);
+
+    private Stats(String queueName, String serviceName, String methodName) {
+      this.queueName = queueName;
+      this.serviceName = serviceName;
+      this.methodName = methodName;
+    }
+
+    /** Number of tasks enqueued. */
+    public long tasks() {
+      return tasks.sum();
+    }
+
+    /** Total payload size in bytes. */
+    public long payloadBytes() {
+      return payloadBytes.sum();
+    }
+
+    /** Number of failed enqueue calls. */
+    public long failures() {
+      return failures.sum();
+    }
+
+    /** Returns the number of enqueue calls by latency. Last bucket is unbounded. */
+    public long[] latencies() {
+      return latency.counts();
+    }
+
+    @Override public String toString() {
+      return "RpcMetricsRegistry.Stats{queue=" + queueName + ", service=" + serviceName
+          + ", method=" + methodName + ", tasks=" + tasks() + ", payloadBytes=" + payloadBytes()
+          + ", failures=" + failures() + ", latencies=" + Arrays.toString(latencies()) + "}";
+    }
+  }
+
+  /** Fixed-bucket histogram. */
+  private static class Histogram {
+
+    private final long[] bounds;
+    private final LongAdder[] buckets;
+    private final LongAdder sum = new LongAdder();
+
+    private Histogram(long[] bounds) {
+      this.bounds = bounds;
+      this.buckets = new LongAdder[bounds.length + 1];
+      for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+    }
+
+    void record(long value) {
+      int index = Arrays.binarySearch(bounds, value);
+      buckets[index >= 0 ? index : -index - 1].increment();
+      sum.add(value);
+    }
+
+    long[] counts() {
+      return Arrays.stream(buckets).mapToLong(LongAdder::sum).toArray();
+    }
+
+    void clear() {
+      for (LongAdder bucket : buckets) bucket.reset();
+      sum.reset();
+    }
+  }
+}
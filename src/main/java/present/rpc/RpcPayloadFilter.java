@@ -0,0 +1,210 @@
+package present.rpc;
+
+import com.google.appengine.tools.cloudstorage.GcsFileOptions;
+import com.google.appengine.tools.cloudstorage.GcsFilename;
+import com.google.appengine.tools.cloudstorage.GcsInputChannel;
+import com.google.appengine.tools.cloudstorage.GcsService;
+import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.GzipSource;
+import okio.Okio;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import present.engine.AppEngine;
+import present.engine.Uuids;
+
+/**
+ * Restores task payloads compressed or spilled to GCS by {@link RpcQueue#compressAbove} and
+ * {@link RpcQueue#spillLargePayloads} clients before they reach the RPC servlet. Deletes spilled
+ * payloads once the task succeeds. Add a GCS lifecycle rule to clean up after tasks that never
+ * succeed.
+ *
+ * To use, add this to web.xml:
+ *
+ * <pre>
+ *   <filter>
+ *     <filter-name>rpcPayloads</filter-name>
+ *     <filter-class>present.rpc.RpcPayloadFilter</filter-class>
+ *   </filter>
+ *   <filter-mapping>
+ *     <filter-name>rpcPayloads</filter-name>
+ *     <url-pattern>/*</url-pattern>
+ *   </filter-mapping>
+ * </pre>
+ *
+ * @author Bob Lee (bob@present.co)
+ */
+public class RpcPayloadFilter implements Filter {
+
+  private static final Logger logger = LoggerFactory.getLogger(RpcPayloadFilter.class);
+
+  /** Set to "gzip" if the payload is compressed. */
+  static final String ENCODING_HEADER = "X-Rpc-Encoding";
+
+  /** Name of the GCS object holding the payload. */
+  static final String LOCATION_HEADER = "X-Rpc-Payload";
+
+  private static final String SPILL_PREFIX = "rpc/";
+
+  @Override public void init(FilterConfig config) {}
+
+  @Override public void destroy() {}
+
+  @Override public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse,
+      FilterChain chain) throws IOException, ServletException {
+    HttpServletRequest request = (HttpServletRequest) servletRequest;
+    HttpServletResponse response = (HttpServletResponse) servletResponse;
+    String encoding = request.getHeader(ENCODING_HEADER);
+    String location = request.getHeader(LOCATION_HEADER);
+    if (encoding == null && location == null) {
+      chain.doFilter(request, response);
+      return;
+    }
+
+    // App Engine strips this header from external requests.
+    if (request.getHeader("X-AppEngine-QueueName") == null
+        || (location != null && !location.startsWith(SPILL_PREFIX))) {
+      response.sendError(403);
+      return;
+    }
+
+    byte[] payload;
+    if (location != null) {
+      payload = read(location);
+      if (payload == null) {
+        // We already ran the task successfully and deleted the payload.
+        logger.warn("Payload not found: {}", location);
+        return;
+      }
+    } else {
+      payload = Okio.buffer(Okio.source(request.getInputStream())).readByteArray();
+    }
+    if (encoding != null) {
+      if (!encoding.equals("gzip")) {
+        response.sendError(415);
+        return;
+      }
+      payload = gunzip(payload);
+    }
+
+    chain.doFilter(new PayloadRequest(request, payload), response);
+
+    if (location != null && response.getStatus() < 300) {
+      GcsServiceFactory.createGcsService().delete(fileFor(location));
+    }
+  }
+
+  /** Compresses the payload. */
+  static byte[] gzip(byte[] payload) {
+    Buffer buffer = new Buffer();
+    try (BufferedSink sink = Okio.buffer(new GzipSink(buffer))) {
+      sink.write(payload);
+    } catch (IOException e) {
+      // Buffers don't throw.
+      throw new AssertionError(e);
+    }
+    return buffer.readByteArray();
+  }
+
+  private static byte[] gunzip(byte[] payload) throws IOException {
+    return Okio.buffer(new GzipSource(new Buffer().write(payload))).readByteArray();
+  }
+
+  /** Writes the payload to GCS and returns its location. */
+  static String spill(byte[] payload) throws IOException {
+    String location = SPILL_PREFIX + Uuids.newUuid();
+    GcsServiceFactory.createGcsService().createOrReplace(fileFor(location),
+        GcsFileOptions.getDefaultInstance(), ByteBuffer.wrap(payload));
+    return location;
+  }
+
+  /** Reads a spilled payload. Returns null if it doesn't exist. */
+  private static byte[] read(String location) throws IOException {
+    GcsService gcsService = GcsServiceFactory.createGcsService();
+    GcsFilename file = fileFor(location);
+    if (gcsService.getMetadata(file) == null) return null;
+    try (GcsInputChannel in = gcsService.openReadChannel(file, 0)) {
+      return Okio.buffer(Okio.source(Channels.newInputStream(in))).readByteArray();
+    }
+  }
+
+  private static GcsFilename fileFor(String location) {
+    return new GcsFilename(AppEngine.applicationId(), location);
+  }
+
+  /** Replaces the request body. */
+  private static class PayloadRequest extends HttpServletRequestWrapper {
+
+    private final byte[] payload;
+
+    private PayloadRequest(HttpServletRequest request, byte[] payload) {
+      super(request);
+      this.payload = payload;
+    }
+
+    @Override public int getContentLength() {
+      return payload.length;
+    }
+
+    @Override public long getContentLengthLong() {
+      return payload.length;
+    }
+
+    @Override public String getHeader(String name) {
+      if (name.equalsIgnoreCase("Content-Length")) return String.valueOf(payload.length);
+      return super.getHeader(name);
+    }
+
+    @Override public ServletInputStream getInputStream() {
+      ByteArrayInputStream in = new ByteArrayInputStream(payload);
+      return new ServletInputStream() {
+        @Override public int read() throws IOException {
+          return in.read();
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+          return in.read(b, off, len);
+        }
+
+        @Override public boolean isFinished() {
+          return in.available() == 0;
+        }
+
+        @Override public boolean isReady() {
+          return true;
+        }
+
+        @Override public void setReadListener(ReadListener listener) {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    @Override public BufferedReader getReader() {
+      String encoding = getCharacterEncoding();
+      return new BufferedReader(new InputStreamReader(new ByteArrayInputStream(payload),
+          encoding == null ? StandardCharsets.UTF_8 : Charset.forName(encoding)));
+    }
+  }
+}
@@ -1,21 +1,58 @@
 package present.rpc;
 
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.EmbeddedEntity;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.taskqueue.Queue;
 import com.google.appengine.api.taskqueue.QueueFactory;
 import com.google.appengine.api.taskqueue.RetryOptions;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskHandle;
 import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.utils.SystemProperty;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import present.engine.Uuids;
 
+import static com.google.appengine.api.utils.SystemProperty.Environment.Value.Production;
+
 /**
  * Creates Present RPC clients that invoke RPCs asynchronously via the App Engine task queue.
  * RPC methods always return null as they're executed asynchronously.
@@ -26,13 +63,19 @@ public class RpcQueue<T> {
 
   private static final Logger logger = LoggerFactory.getLogger(RpcQueue.class);
 
-  private static ThreadLocal<Map<String, List<TaskOptions>>> localBatches = new ThreadLocal<>();
+  private static ThreadLocal<Batch> localBatches = new ThreadLocal<>();
 
   private final Class<T> service;
   private TaskOptions options = TaskOptions.Builder.withDefaults();
   private String queueName = "default";
   private final Map<String, String> headers = new HashMap<>();
   private String host;
+  private int envelopeSize;
+  private long debounceMillis;
+  private int compressionThreshold;
+  private boolean spill;
+  private boolean dedup;
+  private Integer retryLimit;
 
   private RpcQueue(Class<T> service) {
     this.service = service;
@@ -57,6 +100,7 @@ public class RpcQueue<T> {
   /** Don't retry the task if it fails. */
   public RpcQueue<T> noRetries() {
     options = options.retryOptions(RetryOptions.Builder.withTaskRetryLimit(0));
+    retryLimit = 0;
     return this;
   }
 
@@ -78,80 +122,924 @@ public class RpcQueue<T> {
     return this;
   }
 
+  /**
+   * Packs invocations made in a {@linkplain #batch(Runnable) batch} into envelope tasks of up to
+   * {@code maxBytes} each, instead of enqueueing one task per invocation. Invocations outside of
+   * a batch are still enqueued individually. The server must map {@link RpcEnvelopeServlet} to
+   * {@code /_envelope/*}.
+   */
+  public RpcQueue<T> packed(int maxBytes) {
+    Preconditions.checkArgument(maxBytes > 0);
+    this.envelopeSize = maxBytes;
+    return this;
+  }
+
+  /** Packs invocations into envelopes of up to 90KB, under the 100KB push task limit. */
+  public RpcQueue<T> packed() {
+    return packed(MAX_PAYLOAD_SIZE);
+  }
+
+  /** Leaves room for headers under the 100KB push task limit. */
+  private static final int MAX_PAYLOAD_SIZE = 90 * 1024;
+
+  /**
+   * Gzips payloads of {@code minBytes} or more. The server must install
+   * {@link RpcPayloadFilter}.
+   */
+  public RpcQueue<T> compressAbove(int minBytes) {
+    Preconditions.checkArgument(minBytes > 0);
+    this.compressionThreshold = minBytes;
+    return this;
+  }
+
+  /**
+   * Writes payloads too large for a task to GCS and enqueues a reference instead. The server
+   * must install {@link RpcPayloadFilter}.
+   */
+  public RpcQueue<T> spillLargePayloads() {
+    this.spill = true;
+    return this;
+  }
+
+  /**
+   * Coalesces invocations of the same method with the same argument within each {@code window}.
+   * Names tasks after the service, method, argument and time window so the task queue rejects
+   * duplicates, and schedules them to run at the end of the window unless the {@linkplain
+   * #with task options} set a countdown or ETA. Duplicates within a {@linkplain #batch(Runnable)
+   * batch}, or of tasks this instance already enqueued, are dropped before compression, rate
+   * limiting and enqueueing. Debounced invocations aren't {@linkplain #packed() packed}.
+   */
+  public RpcQueue<T> debounce(Duration window) {
+    Preconditions.checkArgument(window.toMillis() > 0);
+    this.debounceMillis = window.toMillis();
+    return this;
+  }
+
+  /**
+   * Stamps each task with an invocation ID so {@link RpcDedupFilter} can skip retries of tasks
+   * that already completed. Costs the server a memcache lookup per task, and a memcache and
+   * datastore write per completed task. The server must install {@link RpcDedupFilter}.
+   */
+  public RpcQueue<T> dedup() {
+    this.dedup = true;
+    return this;
+  }
+
   /** Creates a client that enqueues RPCs. */
   public T create() {
     return service.cast(Proxy.newProxyInstance(service.getClassLoader(),
         new Class<?>[] { service }, new Handler(this)));
   }
 
+  /**
+   * Names of debounced tasks this instance recently enqueued, so we can drop duplicates without
+   * calling the task queue. Names include the time window, so old entries never match again.
+   */
+  private static final Cache<String, Boolean> debouncedNames = CacheBuilder.newBuilder()
+      .maximumSize(10_000)
+      .build();
+
+  /** Returns when the task should run, given the current time. */
+  static long etaMillis(TaskOptions task, long now) {
+    Long eta = task.getEtaMillis();
+    if (eta != null) return eta;
+    Long countdown = task.getCountdownMillis();
+    return countdown != null ? now + countdown : now;
+  }
+
+  private static final Map<String, RpcLimiter> limiters = new ConcurrentHashMap<>();
+
+  /**
+   * Limits how fast this instance enqueues tasks into the given queue. Pass null to remove the
+   * limit. Doesn't apply to in-process execution.
+   *
+   * @throws IllegalArgumentException if a {@link RpcLimiter.Mode#FAIL} limiter's burst is
+   *  smaller than a chunk of 100 tasks, which it could never admit
+   */
+  public static void limit(String queueName, RpcLimiter limiter) {
+    Preconditions.checkArgument(limiter == null || limiter.mode() != RpcLimiter.Mode.FAIL
+        || limiter.burst() >= MAX_TASKS_PER_ADD, "Burst must be at least %s.", MAX_TASKS_PER_ADD);
+    if (limiter == null) {
+      limiters.remove(queueName);
+    } else {
+      limiters.put(queueName, limiter);
+    }
+  }
+
+  private static volatile RpcExecutor executor;
+
+  /**
+   * Runs invocations in-process using the given executor instead of enqueueing tasks. Pass null
+   * to go back to the task queue. For development and tests.
+   *
+   * @throws IllegalStateException in production
+   */
+  public static void setExecutor(RpcExecutor executor) {
+    // Not AppEngine.isDevelopment(). LocalServiceTestHelper's default app ID is "test", so it
+    // would reject tests.
+    Preconditions.checkState(SystemProperty.environment.value() != Production,
+        "In-process execution is for development and tests only.");
+    RpcQueue.executor = executor;
+  }
+
   /**
    * Batches RPC tasks enqueued during {@code r}. Does not enqueue tasks if {@code r} throws.
+   * Enqueues all chunks of all queues concurrently and waits for them to complete.
    *
    * @throws IllegalStateException if already in a batch
    */
   public static void batch(Runnable r) {
+    await(batchAsync(r));
+  }
+
+  /**
+   * Like {@link #batch(Runnable)} but returns without waiting for the tasks to be enqueued.
+   * Callers can wait on the returned future to get the task handles and see errors, or ignore
+   * it. App Engine completes outstanding API calls before the request ends. Does not enqueue
+   * tasks if {@code r} throws.
+   *
+   * @throws IllegalStateException if already in a batch
+   */
+  public static Future<List<TaskHandle>> batchAsync(Runnable r) {
+    Batch current = run(new Batch(null), r);
+    Map<String, List<TaskOptions>> batches = current.tasks;
+    if (batches.isEmpty()) return new Enqueued(Collections.emptyList(), Collections.emptySet());
+    int size = batches.values().stream().mapToInt(List::size).sum();
+    logger.info("Enqueueing {} tasks in {} queues.", size, batches.size());
+    // Apply rate limits before enqueueing anything.
+    batches.forEach((queueName, batch) -> {
+      RpcLimiter limiter = limiters.get(queueName);
+      if (limiter != null) limiter.admit(batch);
+    });
+    RpcMetrics metrics = RpcQueue.metrics;
+    metrics.batched(size);
+    List<Chunk> chunks = new ArrayList<>();
+    batches.forEach((queueName, batch) -> {
+      // We can only enqueue 100 tasks at a time.
+      for (List<TaskOptions> tasks : Lists.partition(batch, MAX_TASKS_PER_ADD)) {
+        chunks.add(enqueue(metrics, queueName, tasks));
+      }
+    });
+    return new Enqueued(chunks, current.debounced);
+  }
+
+  /**
+   * Like {@link #batch(Runnable)} but keeps memory bounded for very large batches. Sends a
+   * queue's tasks asynchronously each time it accumulates 100 tasks or 512KB of payloads, and
+   * waits for the rest at the end. Not all-or-nothing: tasks sent before {@code r} throws stay
+   * enqueued. See {@link #stagedBatch(Runnable)}.
+   *
+   * @throws IllegalStateException if already in a batch
+   */
+  public static void streamBatch(Runnable r) {
+    Sender sender = new Sender();
+    Batch batch = new Batch(sender::send);
+    sender.debounced = batch.debounced;
+    run(batch, r);
+    batch.flushAll();
+    sender.finish();
+  }
+
+  /**
+   * Like {@link #streamBatch(Runnable)} but all-or-nothing. Stages tasks in the datastore as
+   * they accumulate and enqueues them only after {@code r} completes. Deletes the staged tasks
+   * if {@code r} throws. Tasks can still be partially enqueued if enqueueing itself fails.
+   *
+   * @throws IllegalStateException if already in a batch
+   */
+  public static void stagedBatch(Runnable r) {
+    Stager stager = new Stager();
+    Batch batch = new Batch(stager::stage);
+    try {
+      run(batch, r);
+      batch.flushAll();
+      stager.finishStaging();
+    } catch (RuntimeException | Error e) {
+      stager.delete();
+      throw e;
+    }
+    Sender sender = new Sender();
+    sender.debounced = batch.debounced;
+    try {
+      stager.forEach(sender::send);
+      sender.finish();
+    } finally {
+      stager.delete();
+    }
+  }
+
+  /** Runs {@code r} in the given batch. */
+  private static Batch run(Batch batch, Runnable r) {
     Preconditions.checkState(localBatches.get() == null, "Already in a batch.");
-    localBatches.set(new HashMap<>());
+    localBatches.set(batch);
     try {
       r.run();
-      Map<String, List<TaskOptions>> batches = localBatches.get();
-      if (!batches.isEmpty()) {
-        logger.info("Enqueueing {} tasks.", batches.size());
-        batches.forEach((queueName, batch) -> {
-          // We can only enqueue 100 tasks at a time.
-          Lists.partition(batch, 100).forEach(chunk -> {
-            QueueFactory.getQueue(queueName).add(chunk);
-          });
-        });
-      }
     } finally {
       localBatches.remove();
     }
+    batch.sealEnvelopes();
+    batch.local.forEach(Runnable::run);
+    return batch;
+  }
+
+  private static final int MAX_TASKS_PER_ADD = 100;
+
+  /** Streaming batches flush a queue once its payloads reach this size. */
+  private static final int MAX_FLUSH_BYTES = 512 * 1024;
+
+  /** Maximum concurrent enqueue or staging calls per streaming batch. */
+  private static final int MAX_IN_FLIGHT = 10;
+
+  private static final Map<String, Queue> queues = new ConcurrentHashMap<>();
+
+  /** Returns a cached queue. Queues are stateless and look up the namespace when used. */
+  private static Queue queue(String queueName) {
+    return queues.computeIfAbsent(queueName, QueueFactory::getQueue);
+  }
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  private static final String TRACE_OPTIONS = "/0;o=1";
+
+  private static final ThreadLocal<char[]> traceBuffers = ThreadLocal.withInitial(() -> {
+    char[] buffer = new char[32 + TRACE_OPTIONS.length()];
+    TRACE_OPTIONS.getChars(0, TRACE_OPTIONS.length(), buffer, 32);
+    return buffer;
+  });
+
+  /** Returns an X-Cloud-Trace-Context header value with a random 128-bit trace ID. */
+  static String newTraceContext() {
+    char[] buffer = traceBuffers.get();
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    writeHex(random.nextLong(), buffer, 0);
+    writeHex(random.nextLong(), buffer, 16);
+    return new String(buffer);
+  }
+
+  /**
+   * Returns a random invocation ID. Stays the same when the task queue retries the task. See
+   * {@link RpcDedupFilter}.
+   */
+  static String newInvocationId() {
+    // Unlike trace IDs, these must be unpredictable. UUIDs come from a SecureRandom.
+    return Uuids.newUuid();
+  }
+
+  private static void writeHex(long value, char[] buffer, int offset) {
+    for (int i = offset + 15; i >= offset; i--) {
+      buffer[i] = HEX[(int) value & 0xf];
+      value >>>= 4;
+    }
+  }
+
+  /** Starts enqueueing up to 100 tasks. */
+  private static Chunk enqueue(RpcMetrics metrics, String queueName, List<TaskOptions> tasks) {
+    Chunk chunk = new Chunk(metrics, queueName, tasks);
+    chunk.future = queue(queueName).addAsync(tasks);
+    return chunk;
+  }
+
+  /** Enqueues chunks of a streaming batch, limiting the number in flight. */
+  private static class Sender {
+
+    private final RpcMetrics metrics = RpcQueue.metrics;
+    private final Deque<Chunk> inFlight = new ArrayDeque<>();
+    private Set<String> debounced;
+    private int size;
+
+    void send(String queueName, List<TaskOptions> tasks) {
+      RpcLimiter limiter = limiters.get(queueName);
+      if (limiter != null) limiter.admit(tasks);
+      inFlight.add(enqueue(metrics, queueName, tasks));
+      size += tasks.size();
+      while (inFlight.size() > MAX_IN_FLIGHT) complete(inFlight.remove());
+    }
+
+    /** Waits for all chunks. */
+    void finish() {
+      while (!inFlight.isEmpty()) complete(inFlight.remove());
+      metrics.batched(size);
+      logger.info("Enqueued {} tasks.", size);
+    }
+
+    private void complete(Chunk chunk) {
+      await(new Enqueued(Collections.singletonList(chunk), debounced));
+    }
+  }
+
+  /**
+   * Stages chunks of tasks in the datastore. Writes each chunk to its own root entity, named
+   * after the batch and the chunk's index, so writes aren't limited to one entity group.
+   */
+  private static class Stager {
+
+    private static final String KIND = "RpcStagedTasks";
+
+    /** Number of chunks to read at a time. */
+    private static final int READ_SIZE = 5;
+
+    private final AsyncDatastoreService datastore
+        = DatastoreServiceFactory.getAsyncDatastoreService();
+    private final String batchId = Uuids.newUuid();
+    private final Deque<Future<Key>> inFlight = new ArrayDeque<>();
+    private final List<Key> keys = new ArrayList<>();
+
+    void stage(String queueName, List<TaskOptions> tasks) {
+      Entity entity = new Entity(KIND, batchId + "-" + keys.size());
+      entity.setUnindexedProperty("queue", queueName);
+      List<EmbeddedEntity> embedded = new ArrayList<>(tasks.size());
+      for (TaskOptions task : tasks) embedded.add(toEntity(task));
+      entity.setUnindexedProperty("tasks", embedded);
+      keys.add(entity.getKey());
+      inFlight.add(datastore.put(entity));
+      while (inFlight.size() > MAX_IN_FLIGHT) await(inFlight.remove());
+    }
+
+    /** Waits for pending writes. */
+    void finishStaging() {
+      while (!inFlight.isEmpty()) await(inFlight.remove());
+    }
+
+    /** Reads the chunks back in order. */
+    @SuppressWarnings("unchecked")
+    void forEach(BiConsumer<String, List<TaskOptions>> consumer) {
+      DatastoreService sync = DatastoreServiceFactory.getDatastoreService();
+      for (List<Key> chunk : Lists.partition(keys, READ_SIZE)) {
+        Map<Key, Entity> entities = sync.get(chunk);
+        for (Key key : chunk) {
+          Entity entity = entities.get(key);
+          if (entity == null) throw new IllegalStateException("Missing staged tasks: " + key);
+          List<EmbeddedEntity> embedded = (List<EmbeddedEntity>) entity.getProperty("tasks");
+          List<TaskOptions> tasks = new ArrayList<>(embedded.size());
+          for (EmbeddedEntity task : embedded) tasks.add(toTask(task));
+          consumer.accept((String) entity.getProperty("queue"), tasks);
+        }
+      }
+    }
+
+    /** Deletes the staged chunks. */
+    void delete() {
+      // Let pending writes finish so we don't leave entities behind.
+      while (!inFlight.isEmpty()) {
+        try {
+          inFlight.remove().get();
+        } catch (InterruptedException | ExecutionException e) {
+          logger.warn("Staging failed.", e);
+        }
+      }
+      List<Future<Void>> deletes = new ArrayList<>();
+      for (List<Key> chunk : Lists.partition(keys, 500)) deletes.add(datastore.delete(chunk));
+      deletes.forEach(RpcQueue::await);
+      keys.clear();
+    }
+
+    private static EmbeddedEntity toEntity(TaskOptions task) {
+      EmbeddedEntity entity = new EmbeddedEntity();
+      entity.setUnindexedProperty("url", task.getUrl());
+      entity.setUnindexedProperty("method", task.getMethod().name());
+      EmbeddedEntity headers = new EmbeddedEntity();
+      task.getHeaders().forEach(headers::setUnindexedProperty);
+      entity.setUnindexedProperty("headers", headers);
+      if (task.getPayload() != null) {
+        entity.setUnindexedProperty("payload", new Blob(task.getPayload()));
+      }
+      if (task.getTaskName() != null) entity.setUnindexedProperty("name", task.getTaskName());
+      if (task.getEtaMillis() != null) entity.setUnindexedProperty("eta", task.getEtaMillis());
+      if (task.getCountdownMillis() != null) {
+        entity.setUnindexedProperty("countdown", task.getCountdownMillis());
+      }
+      if (task.getRetryOptions() != null) {
+        // RetryOptions has no getters.
+        entity.setUnindexedProperty("retryOptions", new Blob(serialize(task.getRetryOptions())));
+      }
+      return entity;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static TaskOptions toTask(EmbeddedEntity entity) {
+      TaskOptions task = TaskOptions.Builder.withUrl((String) entity.getProperty("url"))
+          .method(TaskOptions.Method.valueOf((String) entity.getProperty("method")));
+      EmbeddedEntity headers = (EmbeddedEntity) entity.getProperty("headers");
+      headers.getProperties().forEach((name, values) -> {
+        for (String value : (List<String>) values) task.header(name, value);
+      });
+      Blob payload = (Blob) entity.getProperty("payload");
+      if (payload != null) task.payload(payload.getBytes());
+      String name = (String) entity.getProperty("name");
+      if (name != null) task.taskName(name);
+      Long eta = (Long) entity.getProperty("eta");
+      if (eta != null) task.etaMillis(eta);
+      Long countdown = (Long) entity.getProperty("countdown");
+      if (countdown != null) task.countdownMillis(countdown);
+      Blob retryOptions = (Blob) entity.getProperty("retryOptions");
+      if (retryOptions != null) {
+        task.retryOptions((RetryOptions) deserialize(retryOptions.getBytes()));
+      }
+      return task;
+    }
+
+    private static byte[] serialize(Object o) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+        out.writeObject(o);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) {
+      try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+        return in.readObject();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      } catch (ClassNotFoundException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+
+  /** Waits for the future and rethrows its failure. */
+  private static <V> V await(Future<V> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /** Combines the results of concurrent {@code Queue.addAsync()} calls. */
+  private static class Enqueued implements Future<List<TaskHandle>> {
+
+    private final List<Chunk> chunks;
+    private final Set<String> debounced;
+
+    private Enqueued(List<Chunk> chunks, Set<String> debounced) {
+      this.chunks = chunks;
+      this.debounced = debounced;
+    }
+
+    @Override public boolean cancel(boolean mayInterruptIfRunning) {
+      boolean cancelled = false;
+      for (Chunk chunk : chunks) cancelled |= chunk.future.cancel(mayInterruptIfRunning);
+      return cancelled;
+    }
+
+    @Override public boolean isCancelled() {
+      return chunks.stream().anyMatch(chunk -> chunk.future.isCancelled());
+    }
+
+    @Override public boolean isDone() {
+      return chunks.stream().allMatch(chunk -> chunk.future.isDone());
+    }
+
+    /**
+     * Waits for every chunk, even after one fails, so each chunk's result is recorded. Throws the
+     * first failure with later ones suppressed.
+     */
+    @Override public List<TaskHandle> get() throws InterruptedException, ExecutionException {
+      List<TaskHandle> handles = new ArrayList<>();
+      ExecutionException failure = null;
+      for (Chunk chunk : chunks) {
+        try {
+          handles.addAll(chunk.future.get());
+          chunk.completed(false);
+          chunk.added();
+        } catch (ExecutionException e) {
+          failure = failed(chunk, e, failure);
+        }
+      }
+      if (failure != null) throw failure;
+      return handles;
+    }
+
+    @Override public List<TaskHandle> get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      List<TaskHandle> handles = new ArrayList<>();
+      ExecutionException failure = null;
+      for (Chunk chunk : chunks) {
+        try {
+          handles.addAll(chunk.future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS));
+          chunk.completed(false);
+          chunk.added();
+        } catch (ExecutionException e) {
+          failure = failed(chunk, e, failure);
+        } catch (TimeoutException e) {
+          if (failure != null) e.addSuppressed(failure.getCause());
+          throw e;
+        }
+      }
+      if (failure != null) throw failure;
+      return handles;
+    }
+
+    /**
+     * Records a failed chunk. Returns the first failure, with this one suppressed if it's not the
+     * first, or {@code first} if the chunk only rejected debounced duplicates.
+     */
+    private ExecutionException failed(Chunk chunk, ExecutionException e,
+        ExecutionException first) {
+      boolean debounced = isDebounced(e.getCause());
+      chunk.completed(!debounced);
+      if (debounced) {
+        chunk.added();
+        return first;
+      }
+      if (first == null) return e;
+      // Callers usually unwrap the cause.
+      if (e.getCause() != first.getCause()) first.getCause().addSuppressed(e.getCause());
+      return first;
+    }
+
+    /**
+     * Returns true if the failure only rejected debounced duplicates. The task queue still adds
+     * the other tasks in the chunk. We don't get handles for the chunk.
+     */
+    private boolean isDebounced(Throwable t) {
+      if (!(t instanceof TaskAlreadyExistsException)) return false;
+      List<String> names = ((TaskAlreadyExistsException) t).getTaskNames();
+      if (!debounced.containsAll(names)) return false;
+      logger.debug("Debounced {} tasks.", names.size());
+      return true;
+    }
+  }
+
+  /** An in-flight {@code Queue.addAsync()} call and its metrics. */
+  private static class Chunk {
+
+    private final RpcMetrics metrics;
+    private final String queueName;
+    private final Set<Rpc> rpcs;
+    private final long start = System.nanoTime();
+    private Future<List<TaskHandle>> future;
+    private boolean completed;
+
+    /** Names of debounced tasks. */
+    private final List<String> names;
+
+    private Chunk(RpcMetrics metrics, String queueName, List<TaskOptions> tasks) {
+      this(metrics, queueName, enqueued(metrics, queueName, tasks), namesOf(tasks));
+    }
+
+    private Chunk(RpcMetrics metrics, String queueName, Set<Rpc> rpcs, List<String> names) {
+      this.metrics = metrics;
+      this.queueName = queueName;
+      this.rpcs = rpcs;
+      this.names = names;
+    }
+
+    private static List<String> namesOf(List<TaskOptions> tasks) {
+      List<String> names = null;
+      for (TaskOptions task : tasks) {
+        if (task.getTaskName() == null) continue;
+        if (names == null) names = new ArrayList<>();
+        names.add(task.getTaskName());
+      }
+      return names == null ? Collections.emptyList() : names;
+    }
+
+    /**
+     * Remembers the chunk's debounced tasks once the task queue has them, so later duplicates
+     * in the same window aren't enqueued.
+     */
+    void added() {
+      for (String name : names) debouncedNames.put(name, Boolean.TRUE);
+    }
+
+    /** Records the latency the first time we see the result. */
+    synchronized void completed(boolean failed) {
+      if (completed) return;
+      completed = true;
+      long latency = System.nanoTime() - start;
+      for (Rpc rpc : rpcs) {
+        metrics.completed(queueName, rpc.serviceName, rpc.methodName, latency, failed);
+      }
+    }
+  }
+
+  private static volatile RpcMetrics metrics = RpcMetricsRegistry.global();
+
+  /** Sets the metrics sink. Defaults to {@link RpcMetricsRegistry#global()}. */
+  public static void setMetrics(RpcMetrics metrics) {
+    RpcQueue.metrics = Preconditions.checkNotNull(metrics);
+  }
+
+  /** Records enqueued tasks by RPC. Returns the RPCs. */
+  private static Set<Rpc> enqueued(RpcMetrics metrics, String queueName,
+      List<TaskOptions> tasks) {
+    Map<Rpc, long[]> totals = new HashMap<>();
+    for (TaskOptions task : tasks) {
+      long[] total = totals.computeIfAbsent(Rpc.of(task), key -> new long[2]);
+      total[0]++;
+      byte[] payload = task.getPayload();
+      if (payload != null) total[1] += payload.length;
+    }
+    totals.forEach((rpc, total) -> metrics.enqueued(queueName, rpc.serviceName, rpc.methodName,
+        (int) total[0], total[1]));
+    return totals.keySet();
+  }
+
+  /** Service and method names used to tag metrics. */
+  private static class Rpc {
+
+    private final String serviceName;
+    private final String methodName;
+
+    private Rpc(String serviceName, String methodName) {
+      this.serviceName = serviceName;
+      this.methodName = methodName;
+    }
+
+    /** Parses "/Service/method" or "/_envelope/Service". */
+    static Rpc of(TaskOptions task) {
+      String url = task.getUrl();
+      if (url.startsWith(RpcEnvelope.PATH)) {
+        return new Rpc(url.substring(RpcEnvelope.PATH.length()), "_envelope");
+      }
+      int slash = url.indexOf('/', 1);
+      return new Rpc(url.substring(1, slash), url.substring(slash + 1));
+    }
+
+    @Override public boolean equals(Object o) {
+      if (!(o instanceof Rpc)) return false;
+      Rpc other = (Rpc) o;
+      return serviceName.equals(other.serviceName) && methodName.equals(other.methodName);
+    }
+
+    @Override public int hashCode() {
+      return serviceName.hashCode() * 31 + methodName.hashCode();
+    }
+  }
+
+  /** Tasks enqueued during a batch. */
+  private static class Batch {
+
+    /** Tasks by queue name. */
+    private final Map<String, List<TaskOptions>> tasks = new HashMap<>();
+
+    /** Payload bytes by queue name. Only tracked when streaming. */
+    private final Map<String, Long> bytes = new HashMap<>();
+
+    /** Open envelopes by client. */
+    private final Map<Handler, RpcEnvelope> envelopes = new HashMap<>();
+
+    /** Names of debounced tasks. */
+    private final Set<String> debounced = new HashSet<>();
+
+    /** Submits in-process invocations. */
+    private final List<Runnable> local = new ArrayList<>();
+
+    /** Receives full chunks of tasks when streaming, or null. */
+    private final BiConsumer<String, List<TaskOptions>> sink;
+
+    private Batch(BiConsumer<String, List<TaskOptions>> sink) {
+      this.sink = sink;
+    }
+
+    void add(String queueName, TaskOptions task) {
+      List<TaskOptions> queue = tasks.computeIfAbsent(queueName, key -> new ArrayList<>());
+      queue.add(task);
+      if (sink == null) return;
+      byte[] payload = task.getPayload();
+      long size = bytes.merge(queueName, payload == null ? 0L : payload.length, Long::sum);
+      if (queue.size() >= MAX_TASKS_PER_ADD || size >= MAX_FLUSH_BYTES) flush(queueName);
+    }
+
+    /** Passes a queue's buffered tasks to the sink. */
+    private void flush(String queueName) {
+      List<TaskOptions> queue = tasks.remove(queueName);
+      bytes.remove(queueName);
+      if (queue != null && !queue.isEmpty()) sink.accept(queueName, queue);
+    }
+
+    /** Passes all buffered tasks to the sink. */
+    void flushAll() {
+      new ArrayList<>(tasks.keySet()).forEach(this::flush);
+    }
+
+    /** Records a debounced task name. Returns false if the batch already contains it. */
+    boolean debounce(String name) {
+      return debounced.add(name);
+    }
+
+    /** Adds an invocation to the client's envelope, starting a new one if it's full. */
+    void pack(Handler handler, String methodName, byte[] argument) {
+      RpcEnvelope envelope = envelopes.get(handler);
+      if (envelope != null && envelope.size() + RpcEnvelope.sizeOf(methodName, argument)
+          > handler.envelopeSize) {
+        add(handler.queueName, handler.envelopeTask(envelope));
+        envelope = null;
+      }
+      if (envelope == null) {
+        envelope = new RpcEnvelope();
+        envelopes.put(handler, envelope);
+      }
+      envelope.add(methodName, argument);
+    }
+
+    /** Converts open envelopes to tasks. */
+    void sealEnvelopes() {
+      envelopes.forEach((handler, envelope) ->
+          add(handler.queueName, handler.envelopeTask(envelope)));
+      envelopes.clear();
+    }
   }
 
   private static class Handler implements InvocationHandler {
 
+    private final Class<?> service;
     private final String serviceName;
     private final Map<String, RpcMethod> methods;
-    private final TaskOptions task;
     private final String queueName;
-    private final Map<String, String> headers;
-    private final String host;
+    private final int envelopeSize;
+    private final long debounceMillis;
+    private final int compressionThreshold;
+    private final boolean spill;
+    private final boolean dedup;
+    private final Integer retryLimit;
+
+    /** Task options and headers shared by all tasks. */
+    private final TaskOptions template;
+
+    /** Precomputed URLs and metric tags. */
+    private final Map<Method, MethodInfo> methodInfos = new HashMap<>();
+    private final String envelopeUrl;
 
     private Handler(RpcQueue<?> rpcQueue) {
       methods = RpcMethod.mapFor(rpcQueue.service);
+      this.service = rpcQueue.service;
       this.serviceName = rpcQueue.service.getSimpleName();
-      this.task = new TaskOptions(rpcQueue.options);
       this.queueName = rpcQueue.queueName;
-      this.headers = new HashMap<>(rpcQueue.headers);
-      this.host = rpcQueue.host;
+      this.envelopeSize = rpcQueue.envelopeSize;
+      this.debounceMillis = rpcQueue.debounceMillis;
+      this.compressionThreshold = rpcQueue.compressionThreshold;
+      this.spill = rpcQueue.spill;
+      this.dedup = rpcQueue.dedup;
+      this.retryLimit = rpcQueue.retryLimit;
+      this.template = new TaskOptions(rpcQueue.options)
+          .method(TaskOptions.Method.POST)
+          .header("Accept", "text/plain");
+      if (rpcQueue.host != null) template.header("Host", rpcQueue.host);
+      rpcQueue.headers.forEach(template::header);
+      for (Method method : rpcQueue.service.getMethods()) {
+        methodInfos.put(method, new MethodInfo(serviceName, method.getName()));
+      }
+      this.envelopeUrl = RpcEnvelope.PATH + serviceName;
     }
 
     @Override public Object invoke(Object proxy, Method javaMethod, Object[] args)
         throws Throwable {
-      String methodName = javaMethod.getName();
+      MethodInfo info = methodInfos.get(javaMethod);
+      String methodName = info.rpc.methodName;
       Object argument = args[0];
-      String url = "/" + serviceName + "/" + methodName;
-      String traceId = Uuids.newUuid().replace("-", "");
-      TaskOptions task = new TaskOptions(this.task);
       RpcEncoding encoding = RpcEncoding.PROTO;
       byte[] argumentBytes = encoding.encode(argument);
-      task.url(url)
-        .method(TaskOptions.Method.POST)
-        .header("Accept", "text/plain")
-        .header("X-Cloud-Trace-Context", traceId + "/0;o=1")
-        .payload(argumentBytes, encoding.contentType);
-      if (this.host != null) task.header("Host", this.host);
-      this.headers.forEach(task::header);
-      Map<String, List<TaskOptions>> batches = localBatches.get();
-      if (batches != null) {
-        List<TaskOptions> batch = batches.computeIfAbsent(this.queueName,
-            (key) -> new ArrayList<>());
-        batch.add(task);
+      Batch batch = localBatches.get();
+      RpcExecutor executor = RpcQueue.executor;
+      if (batch != null && envelopeSize > 0 && debounceMillis == 0 && executor == null) {
+        batch.pack(this, methodName, argumentBytes);
+        return null;
+      }
+      TaskOptions task = newTask(info.url);
+      if (debounceMillis > 0) {
+        long window = System.currentTimeMillis() / debounceMillis;
+        task.taskName(debouncedName(methodName, argumentBytes, window));
+        // Keep the caller's schedule if the options set one.
+        if (task.getEtaMillis() == null && task.getCountdownMillis() == null) {
+          task.etaMillis((window + 1) * debounceMillis);
+        }
+      }
+      if (executor != null) {
+        RpcExecutor.Invocation invocation = new RpcExecutor.Invocation(service, javaMethod,
+            argument, delayMillis(task), task.getTaskName(), retryLimit);
+        if (batch != null) {
+          batch.local.add(() -> executor.submit(invocation));
+        } else {
+          executor.submit(invocation);
+        }
+        return null;
+      }
+      if (debounceMillis > 0) {
+        // Drop known duplicates before we compress, spill, rate limit or count them.
+        String name = task.getTaskName();
+        if (debouncedNames.getIfPresent(name) != null
+            || (batch != null && !batch.debounce(name))) {
+          logger.debug("Debounced {}.{}().", serviceName, methodName);
+          return null;
+        }
+        payload(task, argumentBytes);
+        if (batch != null) {
+          batch.add(this.queueName, task);
+        } else {
+          try {
+            add(info, task);
+          } catch (TaskAlreadyExistsException e) {
+            logger.debug("Debounced {}.{}().", serviceName, methodName);
+          }
+        }
+        return null;
+      }
+      payload(task, argumentBytes);
+      if (batch != null) {
+        batch.add(this.queueName, task);
       } else {
-        QueueFactory.getQueue(this.queueName).add(task);
+        add(info, task);
       }
       return null;
     }
+
+    /** Enqueues a task immediately. */
+    private void add(MethodInfo info, TaskOptions task) {
+      RpcLimiter limiter = limiters.get(this.queueName);
+      if (limiter != null) limiter.admit(Collections.singletonList(task));
+      RpcMetrics metrics = RpcQueue.metrics;
+      metrics.enqueued(queueName, serviceName, info.rpc.methodName, 1, task.getPayload().length);
+      Chunk chunk = new Chunk(metrics, this.queueName, info.rpcs,
+          task.getTaskName() == null ? Collections.emptyList()
+              : Collections.singletonList(task.getTaskName()));
+      boolean failed = true;
+      try {
+        queue(this.queueName).add(task);
+        failed = false;
+        chunk.added();
+      } catch (TaskAlreadyExistsException e) {
+        // Debounced
+        failed = debounceMillis == 0;
+        if (!failed) chunk.added();
+        throw e;
+      } finally {
+        chunk.completed(failed);
+      }
+    }
+
+    /** Returns the delay before the task should run. */
+    private static long delayMillis(TaskOptions task) {
+      long now = System.currentTimeMillis();
+      return Math.max(0, etaMillis(task, now) - now);
+    }
+
+    /** Derives a task name from the invocation and time window. */
+    private String debouncedName(String methodName, byte[] argument, long window) {
+      String hash = Hashing.sha256().newHasher()
+          .putString(methodName, StandardCharsets.UTF_8)
+          .putByte((byte) 0)
+          .putBytes(argument)
+          .hash()
+          .toString();
+      return serviceName + "-" + methodName + "-" + hash + "-" + window;
+    }
+
+    /** Creates a task that invokes the envelope's RPCs. */
+    private TaskOptions envelopeTask(RpcEnvelope envelope) {
+      TaskOptions task = newTask(envelopeUrl);
+      try {
+        return payload(task, envelope.toByteArray());
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    /** Sets the task payload, compressing or spilling it to GCS if configured. */
+    private TaskOptions payload(TaskOptions task, byte[] payload) throws IOException {
+      if (compressionThreshold > 0 && payload.length >= compressionThreshold) {
+        byte[] compressed = RpcPayloadFilter.gzip(payload);
+        // Skip incompressible payloads.
+        if (compressed.length < payload.length) {
+          payload = compressed;
+          task.header(RpcPayloadFilter.ENCODING_HEADER, "gzip");
+        }
+      }
+      if (spill && payload.length > MAX_PAYLOAD_SIZE) {
+        task.header(RpcPayloadFilter.LOCATION_HEADER, RpcPayloadFilter.spill(payload));
+        payload = new byte[0];
+      }
+      return task.payload(payload, RpcEncoding.PROTO.contentType);
+    }
+
+    private TaskOptions newTask(String url) {
+      TaskOptions task = new TaskOptions(template)
+          .url(url)
+          .header("X-Cloud-Trace-Context", newTraceContext());
+      if (dedup) task.header(RpcDedupFilter.INVOCATION_ID_HEADER, newInvocationId());
+      return task;
+    }
+  }
+
+  /** Precomputed per-method state. */
+  private static class MethodInfo {
+
+    private final String url;
+    private final Rpc rpc;
+    private final Set<Rpc> rpcs;
+
+    private MethodInfo(String serviceName, String methodName) {
+      this.url = "/" + serviceName + "/" + methodName;
+      this.rpc = new Rpc(serviceName, methodName);
+      this.rpcs = Collections.singleton(rpc);
+    }
   }
 }
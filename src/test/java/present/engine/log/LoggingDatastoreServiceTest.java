@@ -0,0 +1,424 @@
+package present.engine.log;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.EmbeddedEntity;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import present.engine.CurrentUser;
+import present.engine.Uuids;
+import present.objectify.ForwardingDatastoreService;
+
+import static com.googlecode.objectify.ObjectifyService.ofy;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LoggingDatastoreServiceTest {
+
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+      new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig());
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  private Closeable objectify;
+
+  private final AtomicInteger puts = new AtomicInteger();
+  private LoggingDatastoreService service;
+
+  @Before public void setUp() {
+    helper.setUp();
+    ObjectifyService.register(DatastoreOperation.class);
+    objectify = ObjectifyService.begin();
+    CurrentUser.setIdSupplier(() -> Uuids.NULL);
+    AsyncDatastoreService counting =
+        new ForwardingDatastoreService(DatastoreServiceFactory.getAsyncDatastoreService()) {
+          @Override public Future<List<Key>> put(Iterable<Entity> entities) {
+            puts.incrementAndGet();
+            return super.put(entities);
+          }
+        };
+    service = new LoggingDatastoreService(counting, ImmutableSet.of("User"));
+  }
+
+  @After public void tearDown() {
+    objectify.close();
+    helper.tearDown();
+    LoggingDatastoreService.setMaxBufferSize(100);
+    DatastoreOperation.setShards(0);
+  }
+
+  @Test public void testBuffered() throws Exception {
+    filter(() -> {
+      for (int i = 0; i < 10; i++) service.put(user(i)).get();
+      service.delete(Collections.singletonList(user(0).getKey())).get();
+      service.put(new Entity("Other", "x")).get();
+    });
+    assertEquals(1, puts.get());
+    assertEquals(11, operations());
+  }
+
+  @Test public void testFlushesWhenFull() throws Exception {
+    LoggingDatastoreService.setMaxBufferSize(4);
+    filter(() -> {
+      for (int i = 0; i < 10; i++) service.put(user(i)).get();
+    });
+    assertEquals(3, puts.get());
+    assertEquals(10, operations());
+  }
+
+  @Test public void testFlushesOnError() throws Exception {
+    try {
+      filter(() -> {
+        service.put(user(0)).get();
+        throw new RuntimeException();
+      });
+    } catch (RuntimeException expected) {}
+    assertEquals(1, operations());
+  }
+
+  @Test public void testUnbuffered() throws Exception {
+    service.put(user(0)).get();
+    assertEquals(1, operations());
+  }
+
+  @Test public void testDeltas() throws Exception {
+    service.deltas(3);
+    Entity user = user(0);
+    user.setUnindexedProperty("bio", new Text("Hello, World!"));
+    long before = System.currentTimeMillis() - 1;
+    List<Long> times = new ArrayList<>();
+    List<Map<String, Object>> versions = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      if (i == 2) {
+        user.removeProperty("bio");
+      } else {
+        user.setProperty("name", "Bob " + i);
+      }
+      service.put(user).get();
+      times.add(System.currentTimeMillis());
+      versions.add(new HashMap<>(user.getProperties()));
+      Thread.sleep(2);
+    }
+
+    List<DatastoreOperation> ops = ofy().load().type(DatastoreOperation.class)
+        .order(DatastoreOperation.Fields.timestamp.getName()).list();
+    assertEquals(5, ops.size());
+    assertFalse(ops.get(0).delta);
+    assertTrue(ops.get(1).delta);
+    assertEquals(ImmutableSet.of("name"), ops.get(1).entity.getProperties().keySet());
+    assertTrue(ops.get(2).delta);
+    assertEquals(Collections.singletonList("bio"), ops.get(2).removed);
+    assertTrue(ops.get(2).entity.getProperties().isEmpty());
+    assertFalse(ops.get(3).delta);
+    assertTrue(ops.get(4).delta);
+
+    com.googlecode.objectify.Key<?> key = com.googlecode.objectify.Key.create(user.getKey());
+    for (int i = 0; i < 5; i++) {
+      assertEquals(versions.get(i),
+          DatastoreOperation.reconstruct(key, times.get(i)).getProperties());
+    }
+    assertNull(DatastoreOperation.reconstruct(key, before));
+
+    // Waits for the operation.
+    filter(() -> service.delete(Collections.singletonList(user.getKey())).get());
+    assertNull(DatastoreOperation.reconstruct(key, System.currentTimeMillis()));
+  }
+
+  @Test public void testDeltasWithIncompleteKeys() throws Exception {
+    service.deltas(3);
+    Entity a = new Entity("User");
+    a.setProperty("name", "A");
+    a.setProperty("bio", "Hello");
+    service.put(a).get();
+    Entity b = new Entity("User");
+    b.setProperty("name", "B");
+    service.put(b).get();
+
+    List<DatastoreOperation> ops = ofy().load().type(DatastoreOperation.class)
+        .order(DatastoreOperation.Fields.timestamp.getName()).list();
+    assertEquals(2, ops.size());
+    for (DatastoreOperation op : ops) assertFalse(op.delta);
+    assertEquals(ImmutableSet.of("name", "bio"), ops.get(0).entity.getProperties().keySet());
+    assertEquals(ImmutableSet.of("name"), ops.get(1).entity.getProperties().keySet());
+    assertEquals("B", ops.get(1).entity.getProperty("name"));
+  }
+
+  @Test public void testDeltasAfterLostOperation() throws Exception {
+    service.deltas(10);
+    Entity user = user(0);
+    service.put(user).get();
+    DatastoreOperationFilter.setFlushOnError(false);
+    try {
+      filter(() -> {
+        user.setProperty("name", "Lost");
+        service.put(user).get();
+        throw new IllegalStateException();
+      });
+      fail();
+    } catch (IllegalStateException expected) {
+    } finally {
+      DatastoreOperationFilter.setFlushOnError(true);
+    }
+    user.setProperty("name", "Bob");
+    service.put(user).get();
+
+    List<DatastoreOperation> ops = ofy().load().type(DatastoreOperation.class)
+        .order(DatastoreOperation.Fields.timestamp.getName()).list();
+    assertEquals(2, ops.size());
+    // Doesn't build on the lost version.
+    assertFalse(ops.get(1).delta);
+    assertEquals("Bob", DatastoreOperation.reconstruct(
+        com.googlecode.objectify.Key.create(user.getKey()), System.currentTimeMillis())
+        .getProperty("name"));
+  }
+
+  @Test public void testMissingVersion() {
+    DatastoreOperation full = op(false, 0, "name", "Bob");
+    DatastoreOperation stale = op(true, 0, "name", "Stale");
+    DatastoreOperation gap = op(true, 2, "name", "Robert");
+    assertEquals("Bob", DatastoreOperation.replay(Lists.newArrayList(full, stale))
+        .getProperty("name"));
+    try {
+      DatastoreOperation.replay(Lists.newArrayList(full, gap));
+      fail();
+    } catch (IllegalStateException expected) {}
+    // A full snapshot starts a new chain.
+    assertEquals("Bob", DatastoreOperation.replay(Lists.newArrayList(full, gap, full))
+        .getProperty("name"));
+  }
+
+  @Test public void testDeltasTooLargeForMemcache() throws Exception {
+    service.deltas(10);
+    Entity user = user(0);
+    user.setUnindexedProperty("avatar", new Blob(new byte[999 * 1000]));
+    service.put(user).get();
+    user.setProperty("name", "Bob");
+    service.put(user).get();
+
+    List<DatastoreOperation> ops = ofy().load().type(DatastoreOperation.class)
+        .order(DatastoreOperation.Fields.timestamp.getName()).list();
+    assertEquals(2, ops.size());
+    assertFalse(ops.get(1).delta);
+    assertFalse(MemcacheServiceFactory.getMemcacheService().contains(user.getKey()));
+  }
+
+  @Test public void testSharded() throws Exception {
+    DatastoreOperation.setShards(4);
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < 20; i++) {
+      service.put(user(i % 10)).get();
+      if (i % 5 == 0) Thread.sleep(2);
+    }
+    long end = System.currentTimeMillis() + 1;
+
+    List<DatastoreOperation> ops = Lists.newArrayList(DatastoreOperation.between(start, end));
+    assertEquals(20, ops.size());
+    for (int i = 1; i < ops.size(); i++) {
+      assertTrue(ops.get(i - 1).timestamp <= ops.get(i).timestamp);
+    }
+    Set<Long> shards = ops.stream()
+        .map(op -> op.shardTime >>> 43)
+        .collect(Collectors.toSet());
+    assertTrue(shards.size() > 1);
+    assertEquals(0, Iterators.size(DatastoreOperation.between(start, start)));
+
+    com.googlecode.objectify.Key<?> key = com.googlecode.objectify.Key.create(user(3).getKey());
+    assertEquals(user(3).getProperties(), DatastoreOperation.reconstruct(key, end).getProperties());
+  }
+
+  @Test public void testShardedInserts() throws Exception {
+    DatastoreOperation.setShards(4);
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < 20; i++) service.put(new Entity("User")).get();
+    long end = System.currentTimeMillis() + 1;
+
+    List<DatastoreOperation> ops = Lists.newArrayList(DatastoreOperation.between(start, end));
+    assertEquals(20, ops.size());
+    Set<Long> shards = ops.stream()
+        .map(op -> op.shardTime >>> 43)
+        .collect(Collectors.toSet());
+    assertTrue(shards.size() > 1);
+  }
+
+  @Test public void testReader() throws Exception {
+    String[] userId = { "a" };
+    CurrentUser.setIdSupplier(() -> userId[0]);
+    for (int i = 0; i < 10; i++) {
+      userId[0] = i % 2 == 0 ? "a" : "b";
+      service.put(user(i % 3)).get();
+    }
+    assertEquals(5, Iterators.size(DatastoreOperationReader.forUser("a").pageSize(2).iterator()));
+    assertEquals(0, Iterators.size(DatastoreOperationReader.forUser("c").iterator()));
+    com.googlecode.objectify.Key<?> key = com.googlecode.objectify.Key.create(user(0).getKey());
+    List<DatastoreOperation> ops =
+        Lists.newArrayList(DatastoreOperationReader.forKey(key).pageSize(3));
+    assertEquals(4, ops.size());
+    for (DatastoreOperation op : ops) assertEquals(key, op.key);
+    assertEquals(10, Iterators.size(DatastoreOperationReader.all().pageSize(4).iterator()));
+  }
+
+  @Test public void testReplayKind() throws Exception {
+    service = new LoggingDatastoreService(DatastoreServiceFactory.getAsyncDatastoreService(),
+        ImmutableSet.of("User", "Users", "Photo"));
+    service.put(user(0)).get();
+    service.put(user(1)).get();
+    service.put(new Entity("Users", "x")).get();
+    service.put(new Entity("Photo", "p", user(0).getKey())).get();
+    Thread.sleep(2);
+    long time = System.currentTimeMillis();
+    Thread.sleep(2);
+    filter(() -> {
+      service.put(user(2)).get();
+      service.delete(Collections.singletonList(user(0).getKey())).get();
+    });
+
+    List<Entity> users = new ArrayList<>();
+    DatastoreOperationReplay.kind("User", time, users::add);
+    assertEquals(Lists.newArrayList(user(0), user(1)), users);
+    assertEquals(user(0).getProperties(), users.get(0).getProperties());
+
+    users.clear();
+    DatastoreOperationReplay.kind("User", System.currentTimeMillis(), users::add);
+    assertEquals(Lists.newArrayList(user(1), user(2)), users);
+
+    com.googlecode.objectify.Key<?> key = com.googlecode.objectify.Key.create(user(0).getKey());
+    assertEquals(user(0), DatastoreOperationReplay.entity(key, time));
+    assertNull(DatastoreOperationReplay.entity(key, System.currentTimeMillis()));
+  }
+
+  @Test public void testExport() throws Exception {
+    for (int i = 0; i < 3; i++) service.put(user(i)).get();
+    File file = folder.newFile();
+    assertEquals(3, DatastoreOperationExporter.write(DatastoreOperationReader.all(), file));
+    List<DatastoreOperation> ops = new ArrayList<>();
+    DatastoreOperationExporter.read(file, ops::add);
+    assertEquals(3, ops.size());
+    for (int i = 0; i < 3; i++) {
+      assertEquals(user(i).getKey(), ops.get(i).key.getRaw());
+      assertEquals(user(i).getProperties(), ops.get(i).entity.getProperties());
+    }
+  }
+
+  @Test public void testPolicies() throws Exception {
+    service = new LoggingDatastoreService(DatastoreServiceFactory.getAsyncDatastoreService(),
+        ImmutableMap.of(
+            "User", LogPolicy.all().exclude("email").truncateAbove(5),
+            "Photo", LogPolicy.all().include("url", "caption", "secret").exclude("secret"),
+            "Like", LogPolicy.all().sample(0.5)));
+    service.deltas(10);
+
+    Entity user = user(0);
+    user.setProperty("email", "bob@present.co");
+    user.setProperty("bio", new Text("Hello, World!"));
+    user.setUnindexedProperty("avatar", new Blob(new byte[] { 1, 2, 3 }));
+    service.put(user).get();
+    user.setProperty("bio", new Text("Hello, Bob!"));
+    user.setProperty("avatar", new Blob(new byte[100]));
+    service.put(user).get();
+
+    Entity photo = new Entity("Photo", "p");
+    photo.setProperty("url", "https://present.co/p.jpg");
+    photo.setProperty("secret", "s");
+    photo.setProperty("width", 640);
+    service.put(photo).get();
+
+    for (int i = 0; i < 200; i++) service.put(new Entity("Like", "like" + i)).get();
+    for (int i = 0; i < 200; i++) {
+      service.delete(Collections.singletonList(KeyFactory.createKey("Like", "like" + i))).get();
+    }
+
+    List<DatastoreOperation> users = Lists.newArrayList(DatastoreOperationReader.forKey(
+        com.googlecode.objectify.Key.create(user.getKey())));
+    assertEquals(ImmutableSet.of("name", "bio", "avatar"),
+        users.get(0).entity.getProperties().keySet());
+    assertEquals(new Text("Hello"), users.get(0).entity.getProperty("bio"));
+    assertEquals(Collections.singletonList("bio"), users.get(0).truncated);
+    assertTrue(users.get(1).delta);
+    assertEquals(ImmutableSet.of("avatar"), users.get(1).entity.getProperties().keySet());
+    assertEquals(5, ((Blob) users.get(1).entity.getProperty("avatar")).getBytes().length);
+    assertEquals(ImmutableSet.of("bio", "avatar"), ImmutableSet.copyOf(users.get(1).truncated));
+
+    DatastoreOperation photoOp = DatastoreOperationReader.forKey(
+        com.googlecode.objectify.Key.create(photo.getKey())).iterator().next();
+    assertEquals(ImmutableSet.of("url"), photoOp.entity.getProperties().keySet());
+
+    int likes = 0;
+    int deletes = 0;
+    for (DatastoreOperation op : DatastoreOperationReader.forRootKind("Like")) {
+      if (op.entity == null) deletes++; else likes++;
+    }
+    assertEquals(200, deletes);
+    assertTrue("Logged " + likes + " likes.", likes > 50 && likes < 150);
+  }
+
+  private static Entity user(int id) {
+    Entity user = new Entity("User", "user" + id);
+    user.setProperty("name", "User " + id);
+    return user;
+  }
+
+  private static DatastoreOperation op(boolean delta, long version, String name, Object value) {
+    DatastoreOperation op = new DatastoreOperation();
+    op.delta = delta;
+    op.version = version;
+    op.entity = new EmbeddedEntity();
+    op.entity.setProperty(name, value);
+    return op;
+  }
+
+  private static int operations() {
+    return DatastoreServiceFactory.getDatastoreService()
+        .prepare(new Query(DatastoreOperation.class.getSimpleName()))
+        .countEntities(FetchOptions.Builder.withDefaults());
+  }
+
+  private interface Request {
+    void run() throws Exception;
+  }
+
+  /** Runs the given request through a DatastoreOperationFilter. */
+  private static void filter(Request request) throws Exception {
+    new DatastoreOperationFilter().doFilter(null, null, (req, res) -> {
+      try {
+        request.run();
+      } catch (RuntimeException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+  }
+}
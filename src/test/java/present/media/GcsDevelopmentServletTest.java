@@ -0,0 +1,203 @@
+package present.media;
+
+import com.google.appengine.api.utils.SystemProperty;
+import com.google.appengine.tools.cloudstorage.GcsFileOptions;
+import com.google.appengine.tools.cloudstorage.GcsFilename;
+import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
+import com.google.appengine.tools.development.testing.LocalBlobstoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import present.engine.AppEngine;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class GcsDevelopmentServletTest {
+
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+      new LocalBlobstoreServiceTestConfig(), new LocalDatastoreServiceTestConfig());
+
+  private final byte[] content = new byte[1000];
+
+  @Before public void setUp() throws Exception {
+    helper.setUp();
+    SystemProperty.environment.set(SystemProperty.Environment.Value.Development);
+    for (int i = 0; i < content.length; i++) content[i] = (byte) i;
+    GcsServiceFactory.createGcsService().createOrReplace(
+        new GcsFilename(AppEngine.applicationId(), "test.bin"),
+        new GcsFileOptions.Builder().mimeType("application/octet-stream").build(),
+        ByteBuffer.wrap(content));
+  }
+
+  @After public void tearDown() {
+    System.clearProperty(SystemProperty.environment.key());
+    helper.tearDown();
+  }
+
+  @Test public void testFull() throws Exception {
+    Response response = get(new HashMap<>());
+    assertEquals(200, response.status);
+    assertArrayEquals(content, response.body.toByteArray());
+  }
+
+  @Test public void testRange() throws Exception {
+    Map<String, String> headers = new HashMap<>();
+    headers.put("Range", "bytes=10-19");
+    Response response = get(headers);
+    assertEquals(206, response.status);
+    assertEquals("bytes 10-19/1000", response.headers.get("Content-Range"));
+    assertArrayEquals(Arrays.copyOfRange(content, 10, 20), response.body.toByteArray());
+
+    headers.put("Range", "bytes=-5");
+    response = get(headers);
+    assertEquals(206, response.status);
+    assertArrayEquals(Arrays.copyOfRange(content, 995, 1000), response.body.toByteArray());
+
+    // A stale If-Range serves the whole file.
+    headers.put("If-Range", "\"stale\"");
+    response = get(headers);
+    assertEquals(200, response.status);
+    assertEquals(1000, response.body.size());
+  }
+
+  @Test public void testUnsatisfiableRange() throws Exception {
+    Map<String, String> headers = new HashMap<>();
+    headers.put("Range", "bytes=1000-");
+    Response response = get(headers);
+    assertEquals(416, response.status);
+    assertEquals("bytes */1000", response.headers.get("Content-Range"));
+    assertEquals(0, response.body.size());
+  }
+
+  @Test public void testNotModified() throws Exception {
+    String etag = get(new HashMap<>()).headers.get("ETag");
+    Map<String, String> headers = new HashMap<>();
+    headers.put("If-None-Match", "\"other\", " + etag);
+    Response response = get(headers);
+    assertEquals(304, response.status);
+    assertEquals(0, response.body.size());
+
+    headers.put("If-None-Match", "\"other\"");
+    assertEquals(200, get(headers).status);
+  }
+
+  @Test public void testMalformedDates() throws Exception {
+    Map<String, String> headers = new HashMap<>();
+    headers.put("If-Modified-Since", "yesterday");
+    assertEquals(200, get(headers).status);
+
+    headers.clear();
+    headers.put("Range", "bytes=10-19");
+    headers.put("If-Range", "yesterday");
+    Response response = get(headers);
+    assertEquals(200, response.status);
+    assertEquals(1000, response.body.size());
+
+    headers.put("If-Range", HTTP_DATE.format(ZonedDateTime.now(ZoneOffset.UTC).plusDays(1)));
+    assertEquals(206, get(headers).status);
+  }
+
+  @Test public void testOversizedRange() throws Exception {
+    String huge = "99999999999999999999";
+    Map<String, String> headers = new HashMap<>();
+    headers.put("Range", "bytes=990-" + huge);
+    Response response = get(headers);
+    assertEquals(206, response.status);
+    assertEquals("bytes 990-999/1000", response.headers.get("Content-Range"));
+
+    headers.put("Range", "bytes=-" + huge);
+    response = get(headers);
+    assertEquals(206, response.status);
+    assertArrayEquals(content, response.body.toByteArray());
+
+    headers.put("Range", "bytes=" + huge + "-");
+    assertEquals(416, get(headers).status);
+  }
+
+  private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME;
+
+  /** Parses a date header like a servlet container. */
+  private static long dateHeader(String value) {
+    if (value == null) return -1;
+    try {
+      return ZonedDateTime.parse(value, HTTP_DATE).toInstant().toEpochMilli();
+    } catch (DateTimeParseException e) {
+      throw new IllegalArgumentException(value);
+    }
+  }
+
+  private static class Response {
+    int status = 200;
+    final Map<String, String> headers = new HashMap<>();
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+  }
+
+  /** Runs a GET request through the servlet. */
+  private static Response get(Map<String, String> headers) throws Exception {
+    HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(
+        GcsDevelopmentServletTest.class.getClassLoader(),
+        new Class<?>[] { HttpServletRequest.class },
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getMethod": return "GET";
+            case "getPathInfo": return "/test.bin";
+            case "getHeader": return headers.get(args[0]);
+            case "getDateHeader": return dateHeader(headers.get(args[0]));
+            default: throw new UnsupportedOperationException(method.getName());
+          }
+        });
+    Response result = new Response();
+    ServletOutputStream out = new ServletOutputStream() {
+      @Override public void write(int b) {
+        result.body.write(b);
+      }
+
+      @Override public boolean isReady() {
+        return true;
+      }
+
+      @Override public void setWriteListener(WriteListener listener) {
+        throw new UnsupportedOperationException();
+      }
+    };
+    HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(
+        GcsDevelopmentServletTest.class.getClassLoader(),
+        new Class<?>[] { HttpServletResponse.class },
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "setStatus":
+            case "sendError":
+              result.status = (Integer) args[0];
+              return null;
+            case "setHeader":
+              result.headers.put((String) args[0], (String) args[1]);
+              return null;
+            case "getOutputStream": return out;
+            case "setDateHeader":
+            case "setContentType":
+            case "setContentLengthLong":
+              return null;
+            default: throw new UnsupportedOperationException(method.getName());
+          }
+        });
+    new GcsDevelopmentServlet().doGet(request, response);
+    return result;
+  }
+}
@@ -0,0 +1,79 @@
+package present.media;
+
+import com.google.common.io.ByteStreams;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import javax.imageio.ImageIO;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ImageHeaderTest {
+
+  @Test public void png() throws IOException {
+    byte[] png = ByteStreams.toByteArray(getClass().getResourceAsStream("/test.png"));
+    assertHeader(Media.Type.PNG, 128, 128, ImageHeader.read(png));
+    assertHeader(Media.Type.PNG, 37, 21, ImageHeader.read(encode("png", 37, 21)));
+  }
+
+  @Test public void jpeg() throws IOException {
+    assertHeader(Media.Type.JPEG, 37, 21, ImageHeader.read(encode("jpeg", 37, 21)));
+  }
+
+  @Test public void gif() throws IOException {
+    assertHeader(Media.Type.GIF, 37, 21, ImageHeader.read(encode("gif", 37, 21)));
+  }
+
+  @Test public void webpLossy() {
+    byte[] webp = webp("VP8 ", 0x00, 0x00, 0x00, 0x9D, 0x01, 0x2A, 37, 0x00, 21, 0x00);
+    assertHeader(Media.Type.WEBP, 37, 21, ImageHeader.read(webp));
+  }
+
+  @Test public void webpLossless() {
+    int bits = (37 - 1) | (21 - 1) << 14;
+    byte[] webp = webp("VP8L", 0x2F, bits & 0xFF, bits >> 8 & 0xFF, bits >> 16 & 0xFF, 0x00);
+    assertHeader(Media.Type.WEBP, 37, 21, ImageHeader.read(webp));
+  }
+
+  @Test public void webpExtended() {
+    byte[] webp = webp("VP8X", 0x10, 0x00, 0x00, 0x00, 37 - 1, 0x00, 0x00, 21 - 1, 0x00, 0x00);
+    assertHeader(Media.Type.WEBP, 37, 21, ImageHeader.read(webp));
+  }
+
+  @Test public void truncated() throws IOException {
+    byte[] jpeg = encode("jpeg", 37, 21);
+    assertNull(ImageHeader.read(Arrays.copyOf(jpeg, 10)));
+    assertNull(ImageHeader.read(jpeg, 10));
+    assertNull(ImageHeader.read(new byte[0]));
+  }
+
+  @Test public void unknown() {
+    assertNull(ImageHeader.read("Hello, World!".getBytes()));
+  }
+
+  private static void assertHeader(String type, int width, int height, ImageHeader header) {
+    assertEquals(type, header.type);
+    assertEquals(width, header.width);
+    assertEquals(height, header.height);
+  }
+
+  private static byte[] encode(String format, int width, int height) throws IOException {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(image, format, out);
+    return out.toByteArray();
+  }
+
+  /** Creates a WebP header with the given chunk type and chunk data. */
+  private static byte[] webp(String chunkType, int... data) {
+    byte[] header = new byte[20 + data.length];
+    System.arraycopy("RIFF".getBytes(), 0, header, 0, 4);
+    System.arraycopy("WEBP".getBytes(), 0, header, 8, 4);
+    System.arraycopy(chunkType.getBytes(), 0, header, 12, 4);
+    for (int i = 0; i < data.length; i++) header[20 + i] = (byte) data[i];
+    return header;
+  }
+}
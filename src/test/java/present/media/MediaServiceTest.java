@@ -1,5 +1,9 @@
 package present.media;
 
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo;
+import com.google.appengine.tools.cloudstorage.GcsFilename;
+import com.google.appengine.tools.cloudstorage.GcsService;
+import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
 import com.google.appengine.tools.development.testing.LocalBlobstoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
@@ -10,15 +14,26 @@ import com.googlecode.objectify.ObjectifyService;
 import com.googlecode.objectify.util.Closeable;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
 import okio.ByteString;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import present.engine.AppEngine;
 import present.engine.CurrentUser;
 import present.engine.Uuids;
+import present.rpc.ClientException;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
 
 public class MediaServiceTest {
 
@@ -31,6 +46,7 @@ public class MediaServiceTest {
   @Before public void setup() throws IOException {
     helper.setUp();
     objectify = ObjectifyService.begin();
+    MediaCache.clear();
   }
 
   @After public void tearDown() throws Exception {
@@ -48,6 +64,173 @@ public class MediaServiceTest {
     System.out.println(media.url());
   }
 
+  @Test public void testDeduplicate() throws IOException {
+    CurrentUser.setIdSupplier(() -> Uuids.NULL);
+    ByteString png = ByteString.of(
+        ByteStreams.toByteArray(getClass().getResourceAsStream("/test.png")));
+    Media.setDeduplicate(true);
+    try {
+      Media a = Media.upload(Uuids.repeat('a'), "image/png", png);
+      // Start a new request.
+      objectify.close();
+      objectify = ObjectifyService.begin();
+      Media b = Media.upload(Uuids.repeat('b'), "image/png", png);
+      assertEquals(png.sha256().hex(), a.sha256);
+      assertEquals(a.sha256, b.sha256);
+      assertEquals(a.url, b.url);
+      assertEquals(a.imageUrl, b.imageUrl);
+    } finally {
+      Media.setDeduplicate(false);
+    }
+  }
+
+  @Test public void testDeduplicateLarge() throws IOException {
+    CurrentUser.setIdSupplier(() -> Uuids.NULL);
+    byte[] bytes = new byte[Media.Copy.CHUNK_SIZE * 3];
+    new Random(0).nextBytes(bytes);
+    ByteString content = ByteString.of(bytes);
+    // In-memory content is hashed before it's written.
+    Media.Copy copy = new Media.Copy("application/octet-stream", content);
+    assertEquals(content.sha256().hex(), copy.sha256());
+    Media.setDeduplicate(true);
+    try {
+      Media a = Media.upload(Uuids.repeat('a'), "application/octet-stream", content);
+      // Start a new request.
+      objectify.close();
+      objectify = ObjectifyService.begin();
+      Media b = Media.upload(Uuids.repeat('b'), "application/octet-stream", content);
+      assertEquals(content.sha256().hex(), b.sha256);
+      assertEquals(a.url, b.url);
+      GcsService gcs = GcsServiceFactory.createGcsService();
+      String bucket = AppEngine.applicationId();
+      assertNotNull(gcs.getMetadata(new GcsFilename(bucket, "media/" + a.uuid)));
+      assertNull(gcs.getMetadata(new GcsFilename(bucket, "media/" + b.uuid)));
+    } finally {
+      Media.setDeduplicate(false);
+    }
+  }
+
+  @Test public void testVariants() throws IOException {
+    CurrentUser.setIdSupplier(() -> Uuids.NULL);
+    Media.setVariantWidths(64, 16, 1024);
+    try {
+      Media media = Media.upload(Uuids.NULL, "image/png",
+          ByteString.of(ByteStreams.toByteArray(getClass().getResourceAsStream("/test.png"))));
+      QueueStateInfo queue = LocalTaskQueueTestConfig.getLocalTaskQueue()
+          .getQueueStateInfo().get("default");
+      assertEquals(1, queue.getCountTasks());
+      assertEquals("/MediaTaskService/generateVariants", queue.getTaskInfo().get(0).getUrl());
+
+      // Start a new request.
+      objectify.close();
+      objectify = ObjectifyService.begin();
+      MediaResponse response = new MediaTaskServiceImpl().generateVariants(
+          new VariantsRequest(media.uuid));
+      assertEquals(2, response.variants.size());
+      assertEquals(16, (int) response.variants.get(0).width);
+      assertEquals(16, (int) response.variants.get(0).height);
+      assertEquals(64, (int) response.variants.get(1).width);
+      assertEquals(64, (int) response.variants.get(1).height);
+    } finally {
+      Media.setVariantWidths();
+    }
+  }
+
+  @Test public void testLoadCache() throws IOException {
+    CurrentUser.setIdSupplier(() -> Uuids.NULL);
+    MediaCache.Stats before = MediaCache.stats();
+    assertNull(Media.load(Uuids.NULL));
+    assertNull(Media.load(Uuids.NULL));
+    MediaCache.Stats after = MediaCache.stats();
+    assertEquals(1, after.misses - before.misses);
+    assertEquals(1, after.absentHits - before.absentHits);
+
+    // Saving invalidates the cached absent result.
+    Media media = Media.upload(Uuids.NULL, "image/png",
+        ByteString.of(ByteStreams.toByteArray(getClass().getResourceAsStream("/test.png"))));
+
+    // Start a new request.
+    objectify.close();
+    objectify = ObjectifyService.begin();
+    Media loaded = Media.load(Uuids.NULL);
+    assertEquals(media.url, loaded.url);
+    assertSame(loaded, Media.load(Uuids.NULL));
+    assertEquals(1, MediaCache.stats().hits - after.hits);
+  }
+
+  @Test public void testInvalidateAfterCommit() throws IOException {
+    CurrentUser.setIdSupplier(() -> Uuids.NULL);
+    Media.upload(Uuids.NULL, "image/png",
+        ByteString.of(ByteStreams.toByteArray(getClass().getResourceAsStream("/test.png"))));
+
+    // A concurrent load caches an absent result before the save commits.
+    assertNull(MediaCache.get(Uuids.NULL, uuid -> null));
+
+    // Start a new request.
+    objectify.close();
+    objectify = ObjectifyService.begin();
+    assertNotNull(Media.load(Uuids.NULL));
+  }
+
+  @Test public void testGetIfPresentCountsMisses() {
+    MediaCache.Stats before = MediaCache.stats();
+    assertNull(MediaCache.getIfPresent(Uuids.NULL));
+    assertNull(Media.load(Uuids.NULL));
+    assertNull(MediaCache.getIfPresent(Uuids.NULL));
+    assertEquals(3, MediaCache.stats().misses - before.misses);
+  }
+
+  @Test public void testBatchUploadPartialFailure() throws IOException {
+    ByteString png = ByteString.of(
+        ByteStreams.toByteArray(getClass().getResourceAsStream("/test.png")));
+    CurrentUser.setIdSupplier(() -> "other");
+    Media.upload(Uuids.repeat('b'), "image/png", png);
+
+    // Start a new request.
+    objectify.close();
+    objectify = ObjectifyService.begin();
+    CurrentUser.setIdSupplier(() -> Uuids.NULL);
+    BatchMediaResponse response = new MediaServiceImpl().batchUpload(new BatchUploadRequest(
+        Arrays.asList(new UploadRequest(Uuids.repeat('a'), "image/png", png),
+            new UploadRequest(Uuids.repeat('b'), "image/png", png),
+            new UploadRequest(Uuids.repeat('c'), "image/png", png))));
+    assertEquals(3, response.results.size());
+    assertEquals(Uuids.repeat('a'), response.results.get(0).media.uuid);
+    assertEquals("Unauthorized", response.results.get(1).error);
+    assertEquals(Uuids.repeat('c'), response.results.get(2).media.uuid);
+  }
+
+  @Test public void testBatchCopyHidesServerErrors() throws IOException {
+    CurrentUser.setIdSupplier(() -> Uuids.NULL);
+    // Nothing listens on port 1.
+    BatchMediaResponse response = new MediaServiceImpl().batchCopy(new BatchCopyRequest(
+        Collections.singletonList(new CopyRequest(Uuids.NULL, "http://localhost:1/test.png"))));
+    assertNull(response.results.get(0).media);
+    assertEquals("Internal error", response.results.get(0).error);
+  }
+
+  @Test public void testBatchDuplicates() {
+    CurrentUser.setIdSupplier(() -> Uuids.NULL);
+    try {
+      new MediaServiceImpl().batchCopy(new BatchCopyRequest(Arrays.asList(
+          new CopyRequest(Uuids.NULL, "http://localhost:1/a.png"),
+          new CopyRequest(Uuids.NULL, "http://localhost:1/b.png"))));
+      fail();
+    } catch (ClientException expected) {}
+  }
+
+  @Test public void testBatchTooLarge() {
+    CurrentUser.setIdSupplier(() -> Uuids.NULL);
+    List<CopyRequest> requests = new ArrayList<>();
+    for (int i = 0; i <= Media.MAX_BATCH_SIZE; i++) {
+      requests.add(new CopyRequest(Uuids.newUuid(), "http://localhost:1/test.png"));
+    }
+    try {
+      new MediaServiceImpl().batchCopy(new BatchCopyRequest(requests));
+      fail();
+    } catch (ClientException expected) {}
+  }
+
   @Test public void testCopy() throws IOException {
     CurrentUser.setIdSupplier(() -> Uuids.NULL);
     String url = "https://www.google.com/images/branding/googleg/1x/googleg_standard_color_128dp.png";
@@ -0,0 +1,385 @@
+package present.media;
+
+import com.google.appengine.tools.development.testing.LocalBlobstoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalImagesServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.common.io.ByteStreams;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+import okio.Buffer;
+import okio.Okio;
+import okio.Source;
+import okio.Timeout;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import present.engine.CurrentUser;
+import present.engine.Uuids;
+import present.rpc.ClientException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MediaTest {
+
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+      new LocalImagesServiceTestConfig(), new LocalDatastoreServiceTestConfig(),
+      new LocalBlobstoreServiceTestConfig(), new LocalTaskQueueTestConfig(),
+      new LocalMemcacheServiceTestConfig());
+
+  private Closeable objectify;
+  private HttpServer server;
+
+  @Before public void setUp() {
+    helper.setUp();
+    objectify = ObjectifyService.begin();
+    CurrentUser.setIdSupplier(() -> Uuids.NULL);
+    MediaCache.clear();
+  }
+
+  @After public void tearDown() {
+    if (server != null) server.stop(0);
+    objectify.close();
+    helper.tearDown();
+  }
+
+  @Test public void testHeaderPastFirstChunk() throws IOException {
+    // Push the frame header past the first chunk.
+    byte[] large = jpegWithSegments(2);
+    assertNull(ImageHeader.read(large, Media.Copy.CHUNK_SIZE));
+
+    Media.Copy copy = new Media.Copy("application/octet-stream", large, null);
+    assertEquals(Media.Type.JPEG, copy.type);
+    assertEquals(37, (int) copy.width);
+    assertEquals(21, (int) copy.height);
+  }
+
+  @Test public void testHeaderPastLimit() throws IOException {
+    byte[] large = jpegWithSegments(20);
+    assertTrue(large.length > Media.Copy.MAX_HEADER_SIZE);
+
+    StreamingSource source = new StreamingSource(large, large.length);
+    Media.Copy copy = new Media.Copy("image/jpeg", Okio.buffer(source), null, null);
+    assertEquals("image/jpeg", copy.type);
+    assertNull(copy.width);
+    // Stops reading at the limit.
+    assertTrue(source.read <= Media.Copy.MAX_HEADER_SIZE + 8192);
+  }
+
+  @Test public void testStreamingMemory() throws IOException {
+    // A large video.
+    long size = 16 * 1024 * 1024;
+    byte[] head = "\0\0\0\u0018ftypmp42".getBytes(StandardCharsets.US_ASCII);
+    StreamingSource source = new StreamingSource(head, size);
+    Media.Copy copy = new Media.Copy("video/mp4", Okio.buffer(source), null, null);
+    assertEquals("video/mp4", copy.type);
+    assertNull(copy.width);
+
+    // Track how far reads from the source run ahead of writes to GCS.
+    long[] written = new long[1];
+    long[] maxBuffered = { source.read };
+    WritableByteChannel channel = new WritableByteChannel() {
+      @Override public int write(ByteBuffer buffer) {
+        maxBuffered[0] = Math.max(maxBuffered[0], source.read - written[0]);
+        int count = buffer.remaining();
+        buffer.position(buffer.limit());
+        written[0] += count;
+        return count;
+      }
+
+      @Override public boolean isOpen() {
+        return true;
+      }
+
+      @Override public void close() {}
+    };
+    assertEquals(size, copy.writeTo(channel));
+    assertEquals(size, written[0]);
+    assertNotNull(copy.sha256());
+    assertTrue(maxBuffered[0] <= Media.Copy.CHUNK_SIZE + 8192);
+  }
+
+  /** Encodes a JPEG with large APP segments (like EXIF or ICC data) before the frame header. */
+  private static byte[] jpegWithSegments(int count) throws IOException {
+    BufferedImage image = new BufferedImage(37, 21, BufferedImage.TYPE_INT_RGB);
+    ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    ImageIO.write(image, "jpeg", encoded);
+    byte[] jpeg = encoded.toByteArray();
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(jpeg, 0, 2);
+    for (int i = 0; i < count; i++) {
+      int length = 60_000;
+      out.write(0xFF);
+      out.write(0xE2);
+      out.write(length >> 8);
+      out.write(length & 0xFF);
+      out.write(new byte[length - 2]);
+    }
+    out.write(jpeg, 2, jpeg.length - 2);
+    return out.toByteArray();
+  }
+
+  /** Streams the given head followed by zeros, up to the given size, and counts bytes read. */
+  private static class StreamingSource implements Source {
+
+    private static final byte[] ZEROS = new byte[8192];
+
+    private final byte[] head;
+    private final long size;
+    long read;
+
+    private StreamingSource(byte[] head, long size) {
+      this.head = head;
+      this.size = size;
+    }
+
+    @Override public long read(Buffer sink, long byteCount) {
+      if (read == size) return -1;
+      int count = (int) Math.min(Math.min(byteCount, size - read), ZEROS.length);
+      if (read < head.length) {
+        count = (int) Math.min(count, head.length - read);
+        sink.write(head, (int) read, count);
+      } else {
+        sink.write(ZEROS, 0, count);
+      }
+      read += count;
+      return count;
+    }
+
+    @Override public Timeout timeout() {
+      return Timeout.NONE;
+    }
+
+    @Override public void close() {}
+  }
+
+  @Test public void testPipelineFailure() throws Exception {
+    byte[] png = ByteStreams.toByteArray(getClass().getResourceAsStream("/test.png"));
+    Set<Thread> workers = ConcurrentHashMap.newKeySet();
+    List<String> uuids = new ArrayList<>();
+    List<Media.CopySupplier> suppliers = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      uuids.add(Uuids.repeat((char) ('a' + i)));
+      boolean fail = i == 2;
+      suppliers.add(() -> {
+        workers.add(Thread.currentThread());
+        // Fails while writing to GCS, after sniffing the first chunk.
+        return fail ? new Media.Copy("image/png", Okio.buffer(failingSource(png)), null, null)
+            : new Media.Copy("image/png", png, null);
+      });
+    }
+
+    List<Future<Media>> results = Media.uploadAll(uuids, suppliers);
+    assertEquals(5, results.size());
+    for (int i = 0; i < 5; i++) {
+      if (i == 2) {
+        try {
+          results.get(i).get();
+          fail();
+        } catch (ExecutionException e) {
+          assertTrue(e.getCause() instanceof IOException);
+        }
+      } else {
+        assertEquals(uuids.get(i), results.get(i).get().uuid);
+      }
+    }
+
+    // Start a new request.
+    objectify.close();
+    objectify = ObjectifyService.begin();
+    assertEquals(4, ObjectifyService.ofy().load().type(Media.class).ids(uuids).size());
+
+    // The executor shut down.
+    assertFalse(workers.isEmpty());
+    for (Thread worker : workers) {
+      worker.join(5000);
+      assertFalse(worker.isAlive());
+    }
+  }
+
+  @Test public void testUploadFailure() throws Exception {
+    byte[] png = ByteStreams.toByteArray(getClass().getResourceAsStream("/test.png"));
+    String uuid = Uuids.repeat('a');
+    try {
+      // Fails while writing to GCS, after sniffing the first chunk.
+      Media.upload(uuid,
+          () -> new Media.Copy("image/png", Okio.buffer(failingSource(png)), null, null));
+      fail();
+    } catch (IOException e) {
+      assertEquals("Connection reset", e.getMessage());
+    }
+
+    // Nothing was saved, so a retry uploads again.
+    objectify.close();
+    objectify = ObjectifyService.begin();
+    assertNull(ObjectifyService.ofy().load().type(Media.class).id(uuid).now());
+    Media media = Media.upload(uuid, () -> new Media.Copy("image/png", png, null));
+    assertEquals(128, (int) media.width);
+
+    // Retries of a completed upload don't open the source.
+    objectify.close();
+    objectify = ObjectifyService.begin();
+    MediaCache.clear();
+    assertEquals(media.url, Media.upload(uuid, () -> {
+      throw new AssertionError("Opened source.");
+    }).url);
+  }
+
+  /** Returns the given content followed by padding, then fails. */
+  private static Source failingSource(byte[] content) {
+    Buffer buffer = new Buffer().write(content).write(new byte[Media.Copy.CHUNK_SIZE * 2]);
+    return new Source() {
+      @Override public long read(Buffer sink, long byteCount) throws IOException {
+        if (buffer.size() == 0) throw new IOException("Connection reset");
+        return buffer.read(sink, byteCount);
+      }
+
+      @Override public Timeout timeout() {
+        return Timeout.NONE;
+      }
+
+      @Override public void close() {}
+    };
+  }
+
+  @Test public void testRevalidation() throws Exception {
+    byte[] png = ByteStreams.toByteArray(getClass().getResourceAsStream("/test.png"));
+    List<String> conditions = new ArrayList<>();
+    String url = serve(exchange -> {
+      String etag = exchange.getRequestHeaders().getFirst("If-None-Match");
+      conditions.add(etag);
+      exchange.getResponseHeaders().set("ETag", "\"v1\"");
+      if ("\"v1\"".equals(etag)) {
+        exchange.sendResponseHeaders(304, -1);
+      } else {
+        respond(exchange, png);
+      }
+    });
+
+    Media a = Media.copy(Uuids.repeat('a'), url);
+    // Start a new request.
+    objectify.close();
+    objectify = ObjectifyService.begin();
+    Media b = Media.copy(Uuids.repeat('b'), url);
+
+    assertEquals(2, conditions.size());
+    assertNull(conditions.get(0));
+    assertEquals("\"v1\"", conditions.get(1));
+    assertEquals(a.url, b.url);
+    assertEquals(a.sha256, b.sha256);
+  }
+
+  @Test public void testMaxCopySize() throws Exception {
+    byte[] png = ByteStreams.toByteArray(getClass().getResourceAsStream("/test.png"));
+    String url = serve(exchange -> respond(exchange, png));
+    String chunkedUrl = serve(exchange -> {
+      // No Content-Length.
+      exchange.getResponseHeaders().set("Content-Type", "image/png");
+      exchange.sendResponseHeaders(200, 0);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(png);
+      }
+    });
+    Media.setMaxCopySize(png.length - 1);
+    try {
+      for (String source : new String[] { url, chunkedUrl }) {
+        try {
+          Media.copy(Uuids.newUuid(), source);
+          fail();
+        } catch (ClientException e) {
+          assertEquals("Media too large.", e.getMessage());
+        }
+      }
+      Media.setMaxCopySize(png.length);
+      assertNotNull(Media.copy(Uuids.repeat('a'), chunkedUrl).url);
+    } finally {
+      Media.setMaxCopySize(100 * 1024 * 1024);
+    }
+  }
+
+  @Test public void testMaxConcurrentCopiesPerHost() throws Exception {
+    byte[] png = ByteStreams.toByteArray(getClass().getResourceAsStream("/test.png"));
+    AtomicInteger active = new AtomicInteger();
+    AtomicInteger maxActive = new AtomicInteger();
+    String url = serve(exchange -> {
+      maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+      try {
+        Thread.sleep(100);
+        respond(exchange, png);
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      } finally {
+        active.decrementAndGet();
+      }
+    });
+    Media.setMaxConcurrentCopiesPerHost(1);
+    try {
+      List<CopyRequest> requests = new ArrayList<>();
+      for (int i = 0; i < 3; i++) {
+        requests.add(new CopyRequest(Uuids.repeat((char) ('a' + i)), url + "?" + i));
+      }
+      for (Future<Media> result : Media.copyAll(requests)) assertNotNull(result.get().url);
+      assertEquals(1, maxActive.get());
+    } finally {
+      Media.setMaxConcurrentCopiesPerHost(4);
+    }
+  }
+
+  private interface Handler {
+    void handle(HttpExchange exchange) throws IOException;
+  }
+
+  /** Serves requests from a local HTTP server and returns its URL. */
+  private String serve(Handler handler) throws IOException {
+    if (server == null) {
+      server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+      server.setExecutor(Executors.newCachedThreadPool());
+      server.start();
+    }
+    String path = "/" + Uuids.newUuid();
+    server.createContext(path, exchange -> {
+      try {
+        handler.handle(exchange);
+      } finally {
+        exchange.close();
+      }
+    });
+    return "http://localhost:" + server.getAddress().getPort() + path;
+  }
+
+  private static void respond(HttpExchange exchange, byte[] body) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", "image/png");
+    exchange.sendResponseHeaders(200, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package present.rpc;
+
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class RpcDedupFilterTest {
+
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+      new LocalMemcacheServiceTestConfig(), new LocalDatastoreServiceTestConfig());
+
+  private final AtomicInteger executions = new AtomicInteger();
+
+  @Before public void setUp() {
+    helper.setUp();
+  }
+
+  @After public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test public void testDuplicateSkipped() throws Exception {
+    String id = RpcQueue.newInvocationId();
+    filter(id, 200);
+    filter(id, 200);
+    assertEquals(1, executions.get());
+    filter(RpcQueue.newInvocationId(), 200);
+    assertEquals(2, executions.get());
+  }
+
+  @Test public void testDatastoreFallback() throws Exception {
+    String id = RpcQueue.newInvocationId();
+    filter(id, 200);
+    MemcacheServiceFactory.getMemcacheService().clearAll();
+    filter(id, 200);
+    assertEquals(1, executions.get());
+  }
+
+  @Test public void testFailureNotRecorded() throws Exception {
+    String id = RpcQueue.newInvocationId();
+    filter(id, 500);
+    filter(id, 200);
+    filter(id, 200);
+    assertEquals(2, executions.get());
+  }
+
+  /** Runs a task request with the given invocation ID through the filter. */
+  private void filter(String id, int status) throws Exception {
+    HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(
+        RpcDedupFilterTest.class.getClassLoader(), new Class<?>[] { HttpServletRequest.class },
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getHeader":
+              if (args[0].equals("X-AppEngine-QueueName")) return "default";
+              if (args[0].equals(RpcDedupFilter.INVOCATION_ID_HEADER)) return id;
+              return null;
+            case "getRequestURI": return "/test";
+            default: throw new UnsupportedOperationException(method.getName());
+          }
+        });
+    HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(
+        RpcDedupFilterTest.class.getClassLoader(), new Class<?>[] { HttpServletResponse.class },
+        (proxy, method, args) -> {
+          if (method.getName().equals("getStatus")) return status;
+          throw new UnsupportedOperationException(method.getName());
+        });
+    new RpcDedupFilter().doFilter(request, response,
+        (filteredRequest, filteredResponse) -> executions.incrementAndGet());
+  }
+}
@@ -0,0 +1,150 @@
+package present.rpc;
+
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.ReadListener;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import okio.Okio;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RpcEnvelopeServletTest {
+
+  private final LocalServiceTestHelper helper
+      = new LocalServiceTestHelper(new LocalMemcacheServiceTestConfig());
+
+  /** Paths of included invocations, in order. */
+  private final List<String> invoked = new ArrayList<>();
+  private final Map<String, Integer> statuses = new HashMap<>();
+
+  private RpcEnvelopeServlet servlet;
+  private byte[] envelope;
+
+  @Before public void setUp() throws Exception {
+    helper.setUp();
+    RpcEnvelope envelope = new RpcEnvelope();
+    envelope.add("a", new byte[] { 1 });
+    envelope.add("b", new byte[] { 2 });
+    envelope.add("c", new byte[] { 3 });
+    this.envelope = envelope.toByteArray();
+
+    ServletContext context = proxy(ServletContext.class, (method, args) -> {
+      if (!method.equals("getRequestDispatcher")) return null;
+      String path = (String) args[0];
+      return proxy(RequestDispatcher.class, (dispatcherMethod, dispatcherArgs) -> {
+        HttpServletRequest request = (HttpServletRequest) dispatcherArgs[0];
+        HttpServletResponse response = (HttpServletResponse) dispatcherArgs[1];
+        assertEquals(path, request.getPathInfo());
+        assertEquals(RpcEncoding.PROTO.contentType, request.getContentType());
+        assertNull(request.getHeader(RpcDedupFilter.INVOCATION_ID_HEADER));
+        byte[] argument = Okio.buffer(Okio.source(request.getInputStream())).readByteArray();
+        assertArrayEquals(new byte[] { (byte) (path.charAt(path.length() - 1) - 'a' + 1) },
+            argument);
+        invoked.add(path);
+        Integer status = statuses.get(path);
+        if (status != null) response.sendError(status);
+        return null;
+      });
+    });
+    servlet = new RpcEnvelopeServlet();
+    servlet.init(proxy(ServletConfig.class, (method, args) ->
+        method.equals("getServletContext") ? context : null));
+  }
+
+  @After public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test public void testRetrySkipsCompleted() throws Exception {
+    statuses.put("/Service/b", 500);
+    statuses.put("/Service/c", 400);
+    assertEquals(500, post());
+    assertEquals(Arrays.asList("/Service/a", "/Service/b", "/Service/c"), invoked);
+
+    invoked.clear();
+    statuses.clear();
+    assertEquals(200, post());
+    assertEquals(Arrays.asList("/Service/b"), invoked);
+  }
+
+  @Test public void testExternalRequest() throws Exception {
+    HttpServletRequest request = proxy(HttpServletRequest.class, (method, args) -> null);
+    int[] status = { 200 };
+    servlet.doPost(request, response(status));
+    assertEquals(403, status[0]);
+    assertEquals(0, invoked.size());
+  }
+
+  /** Posts the envelope as a task and returns the status. */
+  private int post() throws Exception {
+    Map<String, String> headers = new HashMap<>();
+    headers.put("X-AppEngine-QueueName", "default");
+    headers.put("X-AppEngine-TaskName", "task1");
+    headers.put(RpcDedupFilter.INVOCATION_ID_HEADER, "id1");
+    HttpServletRequest request = proxy(HttpServletRequest.class, (method, args) -> {
+      switch (method) {
+        case "getHeader": return headers.get(args[0]);
+        case "getPathInfo": return "/Service";
+        case "getInputStream": return inputStream(envelope);
+        default: throw new UnsupportedOperationException(method);
+      }
+    });
+    int[] status = { 200 };
+    servlet.doPost(request, response(status));
+    return status[0];
+  }
+
+  private static HttpServletResponse response(int[] status) {
+    return proxy(HttpServletResponse.class, (method, args) -> {
+      if (method.equals("sendError")) status[0] = (Integer) args[0];
+      return null;
+    });
+  }
+
+  private interface Handler {
+    Object invoke(String method, Object[] args) throws Exception;
+  }
+
+  private static <T> T proxy(Class<T> type, Handler handler) {
+    return type.cast(Proxy.newProxyInstance(RpcEnvelopeServletTest.class.getClassLoader(),
+        new Class<?>[] { type }, (proxy, method, args) -> handler.invoke(method.getName(), args)));
+  }
+
+  private static ServletInputStream inputStream(byte[] body) {
+    ByteArrayInputStream in = new ByteArrayInputStream(body);
+    return new ServletInputStream() {
+      @Override public int read() {
+        return in.read();
+      }
+
+      @Override public boolean isFinished() {
+        return in.available() == 0;
+      }
+
+      @Override public boolean isReady() {
+        return true;
+      }
+
+      @Override public void setReadListener(ReadListener listener) {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+}
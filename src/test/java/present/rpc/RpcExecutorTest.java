@@ -0,0 +1,123 @@
+package present.rpc;
+
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import okio.ByteString;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import present.engine.Uuids;
+import present.media.MediaResponse;
+import present.media.MediaService;
+import present.media.MediaServiceImpl;
+import present.media.UploadRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RpcExecutorTest {
+
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+      new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true));
+
+  private final AtomicInteger uploads = new AtomicInteger();
+  private final AtomicInteger failures = new AtomicInteger();
+  private final UploadRequest request
+      = new UploadRequest(Uuids.NULL, "image/png", ByteString.EMPTY);
+
+  private RpcExecutor executor;
+
+  @Before public void setUp() {
+    helper.setUp();
+    executor = new RpcExecutor(2)
+        .retries(3, Duration.ofMillis(1))
+        .service(MediaService.class, new MediaServiceImpl() {
+          @Override public MediaResponse upload(UploadRequest request) throws IOException {
+            if (failures.getAndDecrement() > 0) throw new IOException();
+            uploads.incrementAndGet();
+            return null;
+          }
+        });
+    RpcQueue.setExecutor(executor);
+  }
+
+  @After public void tearDown() {
+    RpcQueue.setExecutor(null);
+    executor.shutdown();
+    helper.tearDown();
+  }
+
+  @Test public void testRetries() throws Exception {
+    failures.set(2);
+    RpcQueue.create(MediaService.class).upload(request);
+    executor.drain();
+    assertEquals(1, uploads.get());
+  }
+
+  @Test public void testNoRetries() throws Exception {
+    failures.set(1);
+    RpcQueue.to(MediaService.class).noRetries().create().upload(request);
+    try {
+      executor.drain();
+      fail();
+    } catch (RuntimeException expected) {}
+    assertEquals(0, uploads.get());
+  }
+
+  @Test public void testDelay() throws Exception {
+    long start = System.nanoTime();
+    RpcQueue.to(MediaService.class)
+        .with(TaskOptions.Builder.withCountdownMillis(100))
+        .create()
+        .upload(request);
+    executor.drain();
+    assertEquals(1, uploads.get());
+    assertTrue(System.nanoTime() - start >= 100_000_000);
+  }
+
+  @Test public void testBatch() throws Exception {
+    MediaService service = RpcQueue.create(MediaService.class);
+    try {
+      RpcQueue.batch(() -> {
+        upload(service);
+        throw new IllegalStateException();
+      });
+      fail();
+    } catch (IllegalStateException expected) {}
+    RpcQueue.batch(() -> {
+      upload(service);
+      upload(service);
+    });
+    executor.drain();
+    assertEquals(2, uploads.get());
+  }
+
+  @Test public void testShutdown() throws Exception {
+    RpcQueue.to(MediaService.class)
+        .with(TaskOptions.Builder.withCountdownMillis(60_000))
+        .create()
+        .upload(request);
+    executor.shutdown();
+    executor.drain();
+    try {
+      RpcQueue.create(MediaService.class).upload(request);
+      fail();
+    } catch (RejectedExecutionException expected) {}
+    executor.drain();
+    assertEquals(0, uploads.get());
+  }
+
+  private void upload(MediaService service) {
+    try {
+      service.upload(request);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package present.rpc;
+
+import com.google.appengine.tools.cloudstorage.GcsFilename;
+import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
+import com.google.appengine.tools.development.testing.LocalBlobstoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import okio.Okio;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import present.engine.AppEngine;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+public class RpcPayloadFilterTest {
+
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+      new LocalBlobstoreServiceTestConfig(), new LocalDatastoreServiceTestConfig());
+
+  private final byte[] payload = new byte[200 * 1024];
+
+  @Before public void setUp() {
+    helper.setUp();
+  }
+
+  @After public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test public void testCompressed() throws Exception {
+    Map<String, String> headers = new HashMap<>();
+    headers.put(RpcPayloadFilter.ENCODING_HEADER, "gzip");
+    assertArrayEquals(payload, filter(headers, RpcPayloadFilter.gzip(payload)));
+  }
+
+  @Test public void testSpilled() throws Exception {
+    String location = RpcPayloadFilter.spill(RpcPayloadFilter.gzip(payload));
+    Map<String, String> headers = new HashMap<>();
+    headers.put(RpcPayloadFilter.ENCODING_HEADER, "gzip");
+    headers.put(RpcPayloadFilter.LOCATION_HEADER, location);
+    assertArrayEquals(payload, filter(headers, new byte[0]));
+    // Deleted after success
+    assertNull(GcsServiceFactory.createGcsService().getMetadata(
+        new GcsFilename(AppEngine.applicationId(), location)));
+  }
+
+  /** Runs a task request through the filter and returns the body the servlet sees. */
+  private static byte[] filter(Map<String, String> headers, byte[] body) throws Exception {
+    headers.put("X-AppEngine-QueueName", "default");
+    HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(
+        RpcPayloadFilterTest.class.getClassLoader(), new Class<?>[] { HttpServletRequest.class },
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getHeader": return headers.get(args[0]);
+            case "getInputStream": return inputStream(body);
+            default: throw new UnsupportedOperationException(method.getName());
+          }
+        });
+    HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(
+        RpcPayloadFilterTest.class.getClassLoader(), new Class<?>[] { HttpServletResponse.class },
+        (proxy, method, args) -> {
+          if (method.getName().equals("getStatus")) return 200;
+          throw new UnsupportedOperationException(method.getName());
+        });
+    byte[][] received = new byte[1][];
+    new RpcPayloadFilter().doFilter(request, response, (filteredRequest, filteredResponse) ->
+        received[0] = Okio.buffer(Okio.source(filteredRequest.getInputStream())).readByteArray());
+    return received[0];
+  }
+
+  private static ServletInputStream inputStream(byte[] body) {
+    ByteArrayInputStream in = new ByteArrayInputStream(body);
+    return new ServletInputStream() {
+      @Override public int read() {
+        return in.read();
+      }
+
+      @Override public boolean isFinished() {
+        return in.available() == 0;
+      }
+
+      @Override public boolean isReady() {
+        return true;
+      }
+
+      @Override public void setReadListener(ReadListener listener) {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+}
@@ -0,0 +1,362 @@
+package present.rpc;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.apphosting.api.ApiProxy;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import okio.Buffer;
+import okio.ByteString;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import present.engine.Uuids;
+import present.media.MediaService;
+import present.media.UploadRequest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RpcQueueTest {
+
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+      new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true),
+      new LocalDatastoreServiceTestConfig());
+
+  private MediaService service;
+
+  @Before public void setUp() {
+    helper.setUp();
+    service = RpcQueue.create(MediaService.class);
+  }
+
+  @After public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test public void testBatchAsync() throws Exception {
+    Future<List<TaskHandle>> future = RpcQueue.batchAsync(() -> upload(250));
+    assertEquals(250, future.get().size());
+    assertEquals(250, tasks());
+  }
+
+  @Test public void testTraceContext() {
+    upload(2);
+    for (QueueStateInfo.TaskStateInfo task : LocalTaskQueueTestConfig.getLocalTaskQueue()
+        .getQueueStateInfo().get("default").getTaskInfo()) {
+      assertEquals("/MediaService/upload", task.getUrl());
+      List<String> traces = task.getHeaders().stream()
+          .filter(header -> header.getKey().equals("X-Cloud-Trace-Context"))
+          .map(QueueStateInfo.HeaderWrapper::getValue)
+          .collect(Collectors.toList());
+      assertEquals(1, traces.size());
+      assertTrue(traces.get(0).matches("[0-9a-f]{32}/0;o=1"));
+    }
+  }
+
+  @Test public void testBatchFails() {
+    try {
+      RpcQueue.batchAsync(() -> {
+        upload(10);
+        throw new IllegalStateException();
+      });
+      fail();
+    } catch (IllegalStateException expected) {}
+    assertEquals(0, tasks());
+  }
+
+  @Test public void testStreamBatch() {
+    RpcQueue.streamBatch(() -> upload(250));
+    assertEquals(250, tasks());
+  }
+
+  @Test public void testStagedBatch() {
+    try {
+      RpcQueue.stagedBatch(() -> {
+        upload(250);
+        throw new IllegalStateException();
+      });
+      fail();
+    } catch (IllegalStateException expected) {}
+    assertEquals(0, tasks());
+    assertEquals(0, stagedEntities());
+    RpcQueue.stagedBatch(() -> upload(250));
+    assertEquals(250, tasks());
+    assertEquals(0, stagedEntities());
+  }
+
+  @Test public void testDedup() throws IOException {
+    upload(1);
+    RpcQueue.to(MediaService.class).dedup().create()
+        .upload(new UploadRequest(Uuids.newUuid(), "image/png", ByteString.EMPTY));
+    List<QueueStateInfo.TaskStateInfo> tasks = LocalTaskQueueTestConfig.getLocalTaskQueue()
+        .getQueueStateInfo().get("default").getTaskInfo();
+    assertEquals(2, tasks.size());
+    assertEquals(1, tasks.stream()
+        .flatMap(task -> task.getHeaders().stream())
+        .filter(header -> header.getKey().equals(RpcDedupFilter.INVOCATION_ID_HEADER))
+        .count());
+  }
+
+  @Test public void testStagedTaskOptions() {
+    MediaService delayed = RpcQueue.to(MediaService.class)
+        .with(TaskOptions.Builder.withCountdownMillis(60_000))
+        .noRetries()
+        .header("X-Test", "test")
+        .create();
+    UploadRequest request
+        = new UploadRequest(Uuids.NULL, "image/png", ByteString.encodeUtf8("abc"));
+    RpcQueue.stagedBatch(() -> {
+      try {
+        delayed.upload(request);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    QueueStateInfo.TaskStateInfo task = LocalTaskQueueTestConfig.getLocalTaskQueue()
+        .getQueueStateInfo().get("default").getTaskInfo().get(0);
+    assertEquals("/MediaService/upload", task.getUrl());
+    assertEquals("POST", task.getMethod());
+    assertArrayEquals(RpcEncoding.PROTO.encode(request), task.getBodyAsBytes());
+    assertTrue(task.getHeaders().stream().anyMatch(header ->
+        header.getKey().equals("X-Test") && header.getValue().equals("test")));
+    assertTrue(task.getEtaMillis() - System.currentTimeMillis() > 50_000);
+    assertEquals(0, task.getRetryParameters().getRetryLimit());
+  }
+
+  private static int stagedEntities() {
+    return DatastoreServiceFactory.getDatastoreService().prepare(new Query("RpcStagedTasks"))
+        .countEntities(FetchOptions.Builder.withDefaults());
+  }
+
+  @Test public void testPacked() throws Exception {
+    MediaService packed = RpcQueue.to(MediaService.class).packed(1024).create();
+    RpcQueue.batch(() -> {
+      try {
+        for (int i = 0; i < 100; i++) {
+          packed.upload(new UploadRequest(Uuids.newUuid(), "image/png", ByteString.EMPTY));
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    int tasks = tasks();
+    assertTrue(tasks > 1 && tasks < 100);
+  }
+
+  @Test public void testDebounce() throws Exception {
+    MediaService debounced = RpcQueue.to(MediaService.class).debounce(Duration.ofDays(1)).create();
+    UploadRequest request = new UploadRequest(Uuids.NULL, "image/png", ByteString.EMPTY);
+    RpcQueue.batch(() -> {
+      try {
+        debounced.upload(request);
+        debounced.upload(request);
+        debounced.upload(new UploadRequest(Uuids.repeat('1'), "image/png", ByteString.EMPTY));
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    assertEquals(2, tasks());
+    debounced.upload(request);
+    RpcQueue.batch(() -> {
+      try {
+        debounced.upload(request);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    assertEquals(2, tasks());
+  }
+
+  @Test public void testDebounceDuplicates() throws Exception {
+    MediaService debounced = RpcQueue.to(MediaService.class)
+        .with(TaskOptions.Builder.withCountdownMillis(60_000))
+        .debounce(Duration.ofHours(1))
+        .create();
+    UploadRequest request = new UploadRequest(Uuids.repeat('2'), "image/png", ByteString.EMPTY);
+    RpcLimiter limiter = new RpcLimiter(10, 100, RpcLimiter.Mode.FAIL);
+    RpcQueue.limit("default", limiter);
+    long start = System.currentTimeMillis();
+    try {
+      for (int i = 0; i < 10; i++) debounced.upload(request);
+    } finally {
+      RpcQueue.limit("default", null);
+    }
+    assertEquals(1, tasks());
+    // Duplicates didn't use up tokens.
+    assertEquals(1, limiter.admitted());
+    // Kept the countdown instead of waiting for the end of the window.
+    long eta = LocalTaskQueueTestConfig.getLocalTaskQueue().getQueueStateInfo()
+        .get("default").getTaskInfo().get(0).getEtaMillis();
+    assertTrue(eta - start >= 60_000 && eta - start < 70_000);
+  }
+
+  @Test public void testLimitSpread() {
+    RpcLimiter limiter = new RpcLimiter(10, 5, RpcLimiter.Mode.SPREAD);
+    RpcQueue.limit("default", limiter);
+    try {
+      RpcQueue.batch(() -> upload(25));
+    } finally {
+      RpcQueue.limit("default", null);
+    }
+    assertEquals(25, tasks());
+    assertEquals(5, limiter.admitted());
+    assertEquals(20, limiter.deferred());
+    long lastEta = LocalTaskQueueTestConfig.getLocalTaskQueue().getQueueStateInfo()
+        .get("default").getTaskInfo().stream()
+        .mapToLong(QueueStateInfo.TaskStateInfo::getEtaMillis)
+        .max().getAsLong();
+    // 20 tasks over budget at 10/s
+    assertTrue(lastEta - System.currentTimeMillis() > 1500);
+  }
+
+  @Test public void testLimitBlockNearDeadline() {
+    RpcLimiter limiter = new RpcLimiter(10, 5, RpcLimiter.Mode.BLOCK);
+    RpcQueue.limit("default", limiter);
+    ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    ApiProxy.setEnvironmentForCurrentThread((ApiProxy.Environment) Proxy.newProxyInstance(
+        getClass().getClassLoader(), new Class<?>[] { ApiProxy.Environment.class },
+        (proxy, method, args) -> method.getName().equals("getRemainingMillis")
+            ? 500L : method.invoke(environment, args)));
+    long start = System.currentTimeMillis();
+    try {
+      RpcQueue.batch(() -> upload(25));
+    } finally {
+      ApiProxy.setEnvironmentForCurrentThread(environment);
+      RpcQueue.limit("default", null);
+    }
+    // Delayed the tasks instead of blocking for 2s.
+    assertTrue(System.currentTimeMillis() - start < 1000);
+    assertEquals(25, tasks());
+    assertEquals(25, limiter.deferred());
+    long lastEta = LocalTaskQueueTestConfig.getLocalTaskQueue().getQueueStateInfo()
+        .get("default").getTaskInfo().stream()
+        .mapToLong(QueueStateInfo.TaskStateInfo::getEtaMillis)
+        .max().getAsLong();
+    assertTrue(lastEta - System.currentTimeMillis() > 1500);
+  }
+
+  @Test public void testLimitFail() {
+    try {
+      RpcQueue.limit("default", new RpcLimiter(10, 5, RpcLimiter.Mode.FAIL));
+      fail();
+    } catch (IllegalArgumentException expected) {}
+
+    RpcLimiter limiter = new RpcLimiter(10, 100, RpcLimiter.Mode.FAIL);
+    RpcQueue.limit("default", limiter);
+    try {
+      try {
+        RpcQueue.batch(() -> upload(250));
+        fail();
+      } catch (RejectedExecutionException expected) {}
+      assertEquals(0, tasks());
+      assertEquals(250, limiter.rejected());
+
+      // Streaming batches admit a chunk at a time.
+      RpcQueue.streamBatch(() -> upload(100));
+    } finally {
+      RpcQueue.limit("default", null);
+    }
+    assertEquals(100, tasks());
+    assertEquals(100, limiter.admitted());
+  }
+
+  @Test public void testMetrics() {
+    RpcMetricsRegistry registry = new RpcMetricsRegistry();
+    RpcQueue.setMetrics(registry);
+    try {
+      RpcQueue.batch(() -> upload(250));
+      upload(1);
+    } finally {
+      RpcQueue.setMetrics(RpcMetricsRegistry.global());
+    }
+    RpcMetricsRegistry.Stats stats = registry.stats().get(0);
+    assertEquals("default", stats.queueName);
+    assertEquals("MediaService", stats.serviceName);
+    assertEquals("upload", stats.methodName);
+    assertEquals(251, stats.tasks());
+    assertEquals(0, stats.failures());
+    // 3 chunks and 1 single task
+    assertEquals(4, LongStream.of(stats.latencies()).sum());
+    assertEquals(1, registry.batchSizes()[3]);
+    String text = registry.toString();
+    assertTrue(text.startsWith("# TYPE rpc_queue_tasks_total counter\n"
+        + "rpc_queue_tasks_total{queue=\"default\",service=\"MediaService\",method=\"upload\"} 251"
+        + "\n# TYPE rpc_queue_payload_bytes_total counter\n"));
+    assertTrue(text.contains("\n# TYPE rpc_queue_enqueue_latency_ms histogram\n"));
+    assertTrue(text.contains("\n# TYPE rpc_queue_batch_tasks histogram\n"));
+  }
+
+  @Test public void testMetricsAfterFailure() {
+    RpcMetricsRegistry registry = new RpcMetricsRegistry();
+    RpcQueue.setMetrics(registry);
+    MediaService missing = RpcQueue.to(MediaService.class).in("missing").create();
+    try {
+      RpcQueue.batch(() -> {
+        try {
+          for (int i = 0; i < 250; i++) {
+            missing.upload(new UploadRequest(Uuids.newUuid(), "image/png", ByteString.EMPTY));
+          }
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      });
+      fail();
+    } catch (RuntimeException e) {
+      // Waited for all 3 chunks.
+      assertEquals(2, e.getSuppressed().length);
+    } finally {
+      RpcQueue.setMetrics(RpcMetricsRegistry.global());
+    }
+    RpcMetricsRegistry.Stats stats = registry.stats().get(0);
+    assertEquals(3, stats.failures());
+    assertEquals(3, LongStream.of(stats.latencies()).sum());
+  }
+
+  @Test public void testEnvelope() throws IOException {
+    RpcEnvelope envelope = new RpcEnvelope();
+    envelope.add("upload", new byte[] { 1, 2, 3 });
+    envelope.add("copy", new byte[0]);
+    assertEquals(2, envelope.count());
+    assertEquals(RpcEnvelope.sizeOf("upload", new byte[] { 1, 2, 3 })
+        + RpcEnvelope.sizeOf("copy", new byte[0]), envelope.size());
+    List<RpcEnvelope.Invocation> invocations
+        = RpcEnvelope.decode(new Buffer().write(envelope.toByteArray()));
+    assertEquals(2, invocations.size());
+    assertEquals("upload", invocations.get(0).method);
+    assertEquals(ByteString.of(new byte[] { 1, 2, 3 }), invocations.get(0).argument);
+    assertEquals("copy", invocations.get(1).method);
+    assertEquals(ByteString.EMPTY, invocations.get(1).argument);
+  }
+
+  private void upload(int count) {
+    try {
+      for (int i = 0; i < count; i++) {
+        service.upload(new UploadRequest(Uuids.newUuid(), "image/png", ByteString.EMPTY));
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static int tasks() {
+    QueueStateInfo queue = LocalTaskQueueTestConfig.getLocalTaskQueue()
+        .getQueueStateInfo().get("default");
+    return queue.getCountTasks();
+  }
+}